@@ -0,0 +1,107 @@
+/**
+ * This class keeps the server from taking on more work than it can finish while clients still
+ * wait for it. It counts the requests which have been accepted and not finished yet. Once they
+ * reach the high-water mark new connections are answered straight away that the server is busy,
+ * with a hint when to retry, instead of queueing them. Relayed sub-queries, which another server
+ * is waiting on with a deadline and can do without, are shed earlier, at the lower relay
+ * high-water mark, so clients of this server are the last to be turned away.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AdmissionControl {
+	public static final String BUSY = "server busy";
+	// how much a new sample moves the average time a command takes
+	private static final double SMOOTHING = 0.2;
+
+	private AtomicInteger pending = new AtomicInteger();
+	private AtomicLong shed = new AtomicLong();
+	private AtomicLong relayShed = new AtomicLong();
+	// the average time a command takes in milliseconds, for the retry hint
+	private volatile double serviceTime = -1;
+
+	/**
+	 * The method admits a new connection unless the server is at its high-water mark. An admitted
+	 * connection has to be finished with done().
+	 * @return true if the connection is admitted
+	 */
+	public boolean admit() {
+		if (pending.incrementAndGet() > ServerInfo.queueHighWater) {
+			pending.decrementAndGet();
+			shed.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The method records that an admitted connection is finished.
+	 */
+	public void done() {
+		pending.decrementAndGet();
+	}
+
+	/**
+	 * The method records that an admitted connection was turned away after all, e.g. because the
+	 * queue of the thread pool is full.
+	 */
+	public void rejected() {
+		pending.decrementAndGet();
+		shed.incrementAndGet();
+	}
+
+	/**
+	 * The method tells whether a relayed sub-query is shed, which it is once the server is at its
+	 * relay high-water mark.
+	 * @return true if the sub-query is shed
+	 */
+	public boolean shedRelayed() {
+		if (pending.get() < ServerInfo.relayHighWater) return false;
+		relayShed.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * The method records how long a command took.
+	 * @param millis
+	 */
+	public void processed(long millis) {
+		double average = serviceTime;
+		serviceTime = average < 0 ? millis : average + SMOOTHING * (millis - average);
+	}
+
+	/**
+	 * The method builds the answer to a request that is turned away. The hint is how long the
+	 * requests already accepted take to be worked through.
+	 * @param concurrency how many requests the server processes at once
+	 * @return the message as a json string
+	 */
+	public String busyMessage(int concurrency) {
+		double average = Math.max(serviceTime, 0);
+		long retryAfter = Math.max(1, (long) Math.ceil(pending.get() * average / Math.max(1, concurrency) / 1000));
+		return "{\"response\":\"error\",\"errorMessage\":\"" + BUSY + "\",\"retryAfter\":" + retryAfter + "}";
+	}
+
+	/**
+	 * @param response a json string
+	 * @return true if the response says the server is busy
+	 */
+	public static boolean isBusy(String response) {
+		return response != null && response.startsWith("{\"response\":\"error\",\"errorMessage\":\"" + BUSY + "\"");
+	}
+
+	/**
+	 * The method describes the admission control for the STATS command.
+	 * @return the statistics as a json string
+	 */
+	public String statistics() {
+		return "{\"pending\":" + pending.get() + ",\"highWater\":" + ServerInfo.queueHighWater
+				+ ",\"relayHighWater\":" + ServerInfo.relayHighWater + ",\"shed\":" + shed.get()
+				+ ",\"relayShed\":" + relayShed.get() + "}";
+	}
+}
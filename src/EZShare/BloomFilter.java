@@ -0,0 +1,113 @@
+/**
+ * This class is a Bloom filter of strings: a set that can answer "maybe in the set" or "certainly
+ * not in the set" in a fixed number of bits. Servers send one to other servers to summarize their
+ * resources. Each string is hashed once and the positions of its bits are derived from the two
+ * halves of the hash.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+public class BloomFilter {
+	private static final int MAX_HASHES = 16;
+	private long[] bits;
+	private int numBits;
+	private int hashes;
+
+	private BloomFilter(long[] bits, int hashes) {
+		this.bits = bits;
+		this.numBits = bits.length * 64;
+		this.hashes = hashes;
+	}
+
+	/**
+	 * The method creates a filter sized for the number of strings and the false positive rate,
+	 * but no larger than the maximum size.
+	 * @param expectedItems
+	 * @param falsePositiveRate
+	 * @param maxBits
+	 * @return the empty filter
+	 */
+	public static BloomFilter create(int expectedItems, double falsePositiveRate, int maxBits) {
+		int items = Math.max(1, expectedItems);
+		long optimalBits = (long) Math.ceil(-items * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		int numBits = (int) Math.max(64, Math.min(maxBits, optimalBits));
+		int hashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round((double) numBits / items * Math.log(2))));
+		return new BloomFilter(new long[(numBits + 63) / 64], hashes);
+	}
+
+	public void add(String item) {
+		long hash = hash(item);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @param item
+	 * @return false if the string is certainly not in the filter
+	 */
+	public boolean mightContain(String item) {
+		long hash = hash(item);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 0; i < hashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+		}
+		return true;
+	}
+
+	public int getHashes() {
+		return hashes;
+	}
+
+	/**
+	 * @return the bits in base64
+	 */
+	public String encode() {
+		ByteBuffer buffer = ByteBuffer.allocate(bits.length * 8);
+		buffer.asLongBuffer().put(bits);
+		return Base64.getEncoder().encodeToString(buffer.array());
+	}
+
+	/**
+	 * The method rebuilds a filter from its encoded bits.
+	 * @param hashes the number of hashes of the filter
+	 * @param encoded the bits in base64
+	 * @return the filter
+	 * @throws IllegalArgumentException if the filter is malformed
+	 */
+	public static BloomFilter decode(int hashes, String encoded) {
+		byte[] bytes = Base64.getDecoder().decode(encoded);
+		if (bytes.length == 0 || bytes.length % 8 != 0 || hashes < 1 || hashes > MAX_HASHES)
+			throw new IllegalArgumentException("invalid bloom filter");
+		long[] bits = new long[bytes.length / 8];
+		ByteBuffer.wrap(bytes).asLongBuffer().get(bits);
+		return new BloomFilter(bits, hashes);
+	}
+
+	/**
+	 * 64 bit FNV-1a over the characters, followed by the MurmurHash3 finalizer to spread the bits.
+	 */
+	private static long hash(String item) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < item.length(); i++) {
+			hash ^= item.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
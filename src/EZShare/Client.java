@@ -11,17 +11,28 @@
 
 package EZShare;
 
+import java.io.BufferedReader;
 import java.io.DataInputStream;
 
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -41,6 +52,12 @@ public class Client {
 	private static Logger logger = Logger.getLogger(Client.class);
 	// targetServer is the server the client wants to connect
 	private ServerBean targetServer;
+	// smallest chunk of a parallel download and how often a failed chunk is retried
+	private static final long MIN_PARALLEL_CHUNK_SIZE = 1024 * 1024;
+	private static final int CHUNK_RETRIES = 5;
+	// the time the last connection of a parallel download was opened, connections are spaced
+	// by the connection interval of the server, which refuses connections that come sooner
+	private long lastConnection;
 
 	/**
 	 * The main method will create a command line parser to process the
@@ -50,6 +67,7 @@ public class Client {
 	 */
 	public static void main(String[] args) { 
 		Options options = new Options();
+		options.addOption("batch", true, "file of json commands, one per line, sent over one connection");
 		options.addOption("channel", true, "channel");
 		options.addOption("debug", false, "print debug information");
 		options.addOption("description", true, "resource description");
@@ -58,13 +76,16 @@ public class Client {
 		options.addOption("host", true, "server host, a domain name or IP address");
 		options.addOption("name", true, "resource name");
 		options.addOption("owner", true, "owner");
+		options.addOption("parallel", true, "number of connections to fetch with");
 		options.addOption("port", true, "server port, an integer");
 		options.addOption("publish", false, "publish resource on server");
 		options.addOption("query", false, "query for resources from server");
 		options.addOption("remove", false, "remove resource from server");
+		options.addOption("resume", false, "continue fetching a partially downloaded file");
 		options.addOption("secret", true, "secret");
 		options.addOption("servers", true, "server list, host1:port1,host2:port2,...");
 		options.addOption("share", false, "share resource on server");
+		options.addOption("stats", false, "print the statistics of the server");
 		options.addOption("tags", true, "resource tags, tag1,tag2,tag3,...");
 		options.addOption("uri", true, "resource URI"); 
 
@@ -126,6 +147,10 @@ public class Client {
 			fetch(cmd);
 		} else if (cmd.hasOption("exchange")) {
 			exchange(cmd);
+		} else if (cmd.hasOption("batch")) {
+			batch(cmd);
+		} else if (cmd.hasOption("stats")) {
+			stats();
 		} else {
 			// if the user doesn't enter any command above, issue an error message
 			logger.error("missing or incorrect type for command");
@@ -294,82 +319,261 @@ public class Client {
 
 	/**
 	 * The method is to issue a fetch command. The fetch command will download a file from the server.
-	 * Receive response (error or success) from the server and print the message out.
+	 * Receive response (error or success) from the server and print the message out. With the resume
+	 * option a partially downloaded file is continued from its current length.
 	 * @param cmd
 	 */
 	private void fetch(CommandLine cmd) {
 		Resource resource = parseResourceCmd(cmd, true);
 		if (resource == null) return;
+		String fileName = resource.getUri().getPath().split("/")[resource.getUri().getPath().split("/").length - 1];
+		File target = new File(fileName);
+		long offset = 0;
+		if (cmd.hasOption("resume") && target.isFile()) {
+			offset = target.length();
+			logger.info("resuming from byte " + offset);
+		}
+		String fetchCommand = "downloading ";
+		logger.info(fetchCommand);
+		if (cmd.hasOption("parallel")) {
+			int parallel = 0;
+			try {
+				parallel = Integer.parseInt(cmd.getOptionValue("parallel"));
+			} catch (NumberFormatException e) {
+			}
+			if (parallel < 1) {
+				logger.error("parallel should be a positive integer");
+				return;
+			}
+			if (offset > 0) {
+				logger.warn("resume is ignored when fetching in parallel");
+			}
+			fetchParallel(resource, target, parallel);
+			return;
+		}
+		try {
+			fetchRange(targetServer, resource, offset, -1, target);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The method downloads a file in chunks over several concurrent connections. The first
+	 * request only asks for the size of the file, then the file is split into one chunk per
+	 * connection, and each chunk is written at its offset in the target file. The server allows
+	 * one connection per connection interval from a client, so the connections are opened one
+	 * interval apart and the chunks are large, to keep the number of connections low.
+	 * A chunk that fails is retried a few times before the download is given up.
+	 * @param resource the resource template
+	 * @param target the file to write to
+	 * @param parallel the number of concurrent connections
+	 */
+	private void fetchParallel(Resource resource, File target, int parallel) {
+		long size;
+		try {
+			JSONObject resourceInfo = fetchRange(targetServer, resource, 0, 0, target);
+			if (resourceInfo == null) return;
+			// the server doesn't support ranges and has already sent the whole file
+			if (!resourceInfo.has("offset")) return;
+			size = resourceInfo.getLong("resourceSize");
+		} catch (IOException | JSONException e) {
+			e.printStackTrace();
+			return;
+		}
+		synchronized (this) {
+			lastConnection = System.currentTimeMillis();
+		}
+		long chunkSize = Math.max(MIN_PARALLEL_CHUNK_SIZE, (size + parallel - 1) / parallel);
+		ExecutorService executor = Executors.newFixedThreadPool(parallel);
+		List<Future<Boolean>> chunks = new ArrayList<>();
+		for (long offset = 0; offset < size; offset += chunkSize) {
+			long chunkOffset = offset;
+			long chunkLength = Math.min(chunkSize, size - offset);
+			chunks.add(executor.submit(() -> fetchChunk(resource, target, chunkOffset, chunkLength)));
+		}
+		executor.shutdown();
+		boolean completed = true;
+		for (Future<Boolean> chunk : chunks) {
+			try {
+				completed &= chunk.get();
+			} catch (InterruptedException | ExecutionException e) {
+				completed = false;
+			}
+		}
+		if (!completed) {
+			logger.error("download of " + target.getName() + " failed");
+			return;
+		}
+		try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+			file.setLength(size);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		logger.info("downloaded " + size + "B in " + chunks.size() + " chunks");
+	}
+
+	/**
+	 * The method fetches one chunk of a parallel download, retrying if the connection fails.
+	 * @return true if the chunk was written to the file
+	 */
+	private boolean fetchChunk(Resource resource, File target, long offset, long length) {
+		for (int attempt = 1; attempt <= CHUNK_RETRIES; attempt++) {
+			try {
+				pace();
+				JSONObject resourceInfo = fetchRange(targetServer, resource, offset, length, target);
+				return resourceInfo != null;
+			} catch (IOException e) {
+				logger.warn("chunk at " + offset + " failed (attempt " + attempt + "): " + e.getMessage());
+			}
+			try {
+				Thread.sleep(attempt * 1000);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The method waits until the connection interval of the server has passed since the last
+	 * connection of the download, and claims the next slot.
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	private void pace() throws InterruptedIOException {
+		long wait;
+		synchronized (this) {
+			// a little over the interval, so clock granularity doesn't get a connection refused
+			long next = Math.max(System.currentTimeMillis(), lastConnection + ServerInfo.connectionInterval * 1000L + 50);
+			wait = next - System.currentTimeMillis();
+			lastConnection = next;
+		}
+		if (wait <= 0) return;
+		try {
+			Thread.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting to connect");
+		}
+	}
+
+	/**
+	 * The method issues a fetch command for a range of the resource and writes the received bytes
+	 * at their offset in the target file. Servers which don't support ranges send the whole file,
+	 * which is then written from the start.
+	 * @param server the server to fetch from
+	 * @param resource the resource template
+	 * @param offset the first byte to fetch
+	 * @param length the number of bytes to fetch, or -1 for the rest of the file
+	 * @param target the file to write to
+	 * @return the resource information sent by the server, null if the server replied with an error
+	 * @throws IOException if the connection fails or ends before all bytes have been received
+	 */
+	static JSONObject fetchRange(ServerBean server, Resource resource, long offset, long length, File target) throws IOException {
 		OrderedJSONObject jsonObject = new OrderedJSONObject();
 		try {
+			OrderedJSONObject templateObject = Resource.toJson(resource);
+			if (offset > 0)
+				templateObject.put("offset", offset);
+			if (length >= 0)
+				templateObject.put("length", length);
 			jsonObject.put("command", "FETCH"); 
-			jsonObject.put("resourceTemplate", Resource.toJson(resource));  
+			jsonObject.put("resourceTemplate", templateObject);  
 		} catch (org.apache.wink.json4j.JSONException e1) { 
 			e1.printStackTrace();
 		}  
-		String fetchCommand = "downloading ";
-		logger.info(fetchCommand);
 		String sentmsg = "SENT: " + jsonObject.toString();
 		logger.info(sentmsg);
-		Socket socket = null;
-		try {
-			socket = new Socket(targetServer.getHostname(), targetServer.getPort());
+		try (Socket socket = new Socket(server.getHostname(), server.getPort())) {
+			socket.setSoTimeout(ServerInfo.timeout * 1000);
 			DataInputStream inputStream = new DataInputStream(socket.getInputStream());
 			DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-			outputStream.writeUTF(jsonObject.toString());
+			outputStream.writeUTF(Frame.request(jsonObject.toString()));
 			outputStream.flush();
-			if (inputStream.available() > -1) {
-				String response = "RECEIVED: " + inputStream.readUTF(); 
-				logger.info(response);
-				if (response.contains("error"))
-					return;
-				Long size = (long) 0;  
-				String resourceInfoStr = inputStream.readUTF();
-				String resourceInfoMsg = "RECEIVED: " + resourceInfoStr;
-				logger.info(resourceInfoMsg);
-				JSONObject resourceInfo;
-				try {
-					resourceInfo = new JSONObject(resourceInfoStr); 
-					size = resourceInfo.getLong("resourceSize");
-				} catch (JSONException e) {	 
-					logger.error("no resource existed");
-					return;
+			String data = inputStream.readUTF();
+			boolean framed = Frame.accepted(data) > 0;
+			if (framed) {
+				data = readMessage(inputStream, true);
+			}
+			String response = "RECEIVED: " + data; 
+			logger.info(response);
+			if (response.contains("error"))
+				return null;
+			String resourceInfoStr = readMessage(inputStream, framed);
+			String resourceInfoMsg = "RECEIVED: " + resourceInfoStr;
+			logger.info(resourceInfoMsg);
+			JSONObject resourceInfo;
+			long position = 0;
+			long size = 0;
+			try {
+				if (resourceInfoStr == null)
+					throw new JSONException("response ended");
+				resourceInfo = new JSONObject(resourceInfoStr); 
+				size = resourceInfo.getLong("resourceSize");
+				if (resourceInfo.has("offset")) {
+					position = resourceInfo.getLong("offset");
+					size = resourceInfo.getLong("length");
 				}
-				String fileName = resource.getUri().getPath().split("/")[resource.getUri().getPath().split("/").length - 1];
-				RandomAccessFile file = new RandomAccessFile(fileName, "rw");
-				int chunkSize = setChunkSize(size);
-				byte[] buffer = new byte[chunkSize];
-				int number;
-				while ((number = inputStream.read(buffer)) > 0){
-					file.write(Arrays.copyOf(buffer,number));
-					size -= number;
-					chunkSize = setChunkSize(size);
-					buffer = new byte[chunkSize];
-					if (size==0) {
-						file.close();
-						break;
+			} catch (JSONException e) {	 
+				logger.error("no resource existed");
+				return null;
+			}
+			try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+				FileChannel fileChannel = file.getChannel();
+				byte[] buffer = new byte[setChunkSize(size)];
+				// on a framed connection the file arrives in DATA frames, otherwise it follows the resource
+				long frameRemaining = framed ? 0 : size;
+				while (size > 0) {
+					if (frameRemaining == 0) {
+						Frame frame = Frame.read(inputStream);
+						if (frame.getType() != Frame.DATA)
+							throw new ProtocolException("connection ended before the file was received");
+						frameRemaining = frame.getLength();
+						continue;
 					}
-				} 
-				if (inputStream.available() > 0) {
-					String msg = "RECEIVED: " + inputStream.readUTF();
-					logger.info(msg);
+					int number = inputStream.read(buffer, 0, (int) Math.min(setChunkSize(size), frameRemaining));
+					if (number < 0)
+						throw new EOFException("connection closed before the file was received");
+					ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, number);
+					while (byteBuffer.hasRemaining()) {
+						position += fileChannel.write(byteBuffer, position);
+					}
+					size -= number;
+					frameRemaining -= number;
 				}
-				inputStream.close();
-				outputStream.close();
-			}  
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			if (socket != null) {
-				try {
-					socket.close();
-				} catch (IOException e) {
-					e.printStackTrace();
+				if (length < 0) {
+					file.setLength(position);
 				}
 			}
+			if (framed) {
+				String msg;
+				while ((msg = readMessage(inputStream, true)) != null) {
+					logger.info("RECEIVED: " + msg);
+				}
+			} else if (inputStream.available() > 0) {
+				String msg = "RECEIVED: " + inputStream.readUTF();
+				logger.info(msg);
+			}
+			return resourceInfo;
 		}
 	}
 
+	/**
+	 * The method reads the next message of a fetch response.
+	 * @param inputStream
+	 * @param framed whether the connection is framed
+	 * @return the message, or null if a framed response has ended
+	 * @throws IOException
+	 */
+	private static String readMessage(DataInputStream inputStream, boolean framed) throws IOException {
+		if (!framed) return inputStream.readUTF();
+		Frame frame = Frame.read(inputStream);
+		if (frame.getType() == Frame.END) return null;
+		if (frame.getType() != Frame.JSON)
+			throw new ProtocolException("expected a message");
+		return frame.getMessage();
+	}
+
 	/**
 	 * The method is to issue a query command. The query command is to match the template against
 	 * existing resources using some rules. Receive response (error or success) from the server 
@@ -447,6 +651,71 @@ public class Client {
 		}
 	}
 
+	/**
+	 * The method is to issue a stats command, which returns the statistics of the server such as
+	 * the hits and misses of its query cache. Print the messages from the server out.
+	 */
+	private void stats() {
+		String statsCommand = "{\"command\":\"STATS\"}";
+		logger.info("SENT: " + statsCommand);
+		List<Message> messages = ClientConnection.establishConnection(targetServer, new Message(statsCommand));
+		if (messages != null) {
+			for (Message message : messages) {
+				logger.info("RECEIVED: " + message.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * The method is to send the commands of a file, one json command per line, over one persistent
+	 * connection without waiting for each response. If the server doesn't support persistent
+	 * connections the commands are sent one connection each. Fetch commands are not supported.
+	 * @param cmd
+	 */
+	private void batch(CommandLine cmd) {
+		List<Message> commands = new ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new FileReader(cmd.getOptionValue("batch")))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().equals("")) continue;
+				if (line.contains("FETCH")) {
+					logger.error("fetch is not supported in a batch: " + line);
+					continue;
+				}
+				commands.add(new Message(line.trim()));
+			}
+		} catch (IOException e) {
+			logger.error("cannot read batch file: " + e.getMessage());
+			return;
+		}
+		List<List<Message>> responses = new ArrayList<>();
+		ClientConnection connection = null;
+		try {
+			connection = ClientConnection.open(targetServer);
+		} catch (IOException e) {
+			logger.debug("persistent connection failed: " + e.getMessage());
+			for (Message command : commands) {
+				responses.add(ClientConnection.establishConnection(targetServer, command));
+			}
+		}
+		if (connection != null) {
+			try {
+				responses = connection.pipeline(commands);
+			} catch (IOException e) {
+				logger.error("lost connection to " + targetServer.getHostname() + ":" + targetServer.getPort());
+				return;
+			} finally {
+				connection.close();
+			}
+		}
+		for (int i = 0; i < commands.size(); i++) {
+			logger.info("SENT: " + commands.get(i).getMessage());
+			for (Message message : responses.get(i)) {
+				logger.info("RECEIVED: " + message.getMessage());
+			}
+		}
+	}
+
 	/**
 	 * This method is to set chunk size for receiving files.
 	 * @param fileSizeRemaining
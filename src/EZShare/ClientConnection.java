@@ -1,19 +1,257 @@
 /**
  * This class in responsible for open the client socket and establish a connection with the server.
- * Once the connection is done, close the socket.
+ * Once the connection is done, close the socket. A connection opened with open() instead stays
+ * open, so several commands can be sent over it and pipelined. Both kinds of connections use
+ * binary frames if the server supports them, see Frame.
  * @author Sheng Wu
  * @version 1.0 29/04/2017
  */
 package EZShare; 
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class ClientConnection { 
+	// the number of commands sent ahead of their responses on a persistent connection,
+	// small enough that the commands fit in the socket buffers while the server is writing
+	private static final int PIPELINE_WINDOW = 64;
+
+	private ServerBean serverBean;
+	private Socket socket;
+	private DataInputStream inputStream;
+	private DataOutputStream outputStream;
+	private long nextRequestId = 1;
+	// the framing version of the connection, 0 for writeUTF messages
+	private int framing;
+	// the read timeout of the socket in milliseconds
+	private int timeout = ServerInfo.timeout * 1000;
+	// whether the connection holds a thread of the server while it is open
+	private boolean threadPerConnection;
+
+	private ClientConnection(ServerBean serverBean, Socket socket) throws IOException {
+		this.serverBean = serverBean;
+		this.socket = socket;
+		this.inputStream = new DataInputStream(socket.getInputStream());
+		this.outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * The method opens a persistent connection to the server, framed if the server supports it.
+	 * @param serverBean
+	 * @return the connection
+	 * @throws ProtocolException if the server doesn't support persistent connections
+	 * @throws IOException if the server cannot be reached
+	 */
+	public static ClientConnection open(ServerBean serverBean) throws IOException {
+		return open(serverBean, ServerInfo.timeout * 1000);
+	}
+
+	/**
+	 * The method opens a persistent connection to the server, framed if the server supports it.
+	 * @param serverBean
+	 * @param timeout the connect and read timeout in milliseconds
+	 * @return the connection
+	 * @throws ProtocolException if the server doesn't support persistent connections
+	 * @throws BusyException if the server turned the connection away
+	 * @throws IOException if the server cannot be reached
+	 */
+	public static ClientConnection open(ServerBean serverBean, int timeout) throws IOException {
+		Socket socket = connect(serverBean, timeout);
+		try {
+			ClientConnection connection = new ClientConnection(serverBean, socket);
+			connection.timeout = timeout;
+			connection.outputStream.writeUTF(KeepAlive.HANDSHAKE);
+			connection.outputStream.flush();
+			String response = connection.inputStream.readUTF();
+			if (AdmissionControl.isBusy(response))
+				throw new BusyException(response);
+			if (!KeepAlive.isHandshakeResponse(response))
+				throw new ProtocolException("persistent connections are not supported: " + response);
+			connection.framing = Frame.accepted(response);
+			connection.threadPerConnection = KeepAlive.isThreadPerConnection(response);
+			return connection;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * The method sends a command over the persistent connection and receives its response.
+	 * @param message the command
+	 * @return messages a list of messages from the server
+	 * @throws IOException if the connection fails, after which it is closed
+	 */
+	public List<Message> request(Message message) throws IOException {
+		return pipeline(Collections.singletonList(message)).get(0);
+	}
+
+	/**
+	 * The method sends a command over the persistent connection and receives its response,
+	 * waiting for each read at most the timeout, which the connection keeps afterwards.
+	 * @param message the command
+	 * @param timeout the read timeout in milliseconds
+	 * @return messages a list of messages from the server
+	 * @throws IOException if the connection fails, after which it is closed
+	 */
+	public List<Message> request(Message message, int timeout) throws IOException {
+		if (timeout != this.timeout) {
+			try {
+				socket.setSoTimeout(timeout);
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+			this.timeout = timeout;
+		}
+		return request(message);
+	}
+
+	/**
+	 * The method sends the commands over the persistent connection without waiting for the
+	 * previous responses and receives the responses in order. Commands whose response carries
+	 * file contents are not supported.
+	 * @param commands
+	 * @return the messages from the server for each command
+	 * @throws IOException if the connection fails, after which it is closed
+	 */
+	public List<List<Message>> pipeline(List<Message> commands) throws IOException {
+		List<List<Message>> responses = new ArrayList<>();
+		try {
+			int sent = 0;
+			while (responses.size() < commands.size()) {
+				while (sent < commands.size() && sent - responses.size() < PIPELINE_WINDOW) {
+					String command = commands.get(sent++).getMessage().replaceAll("\0","").trim();
+					if (framing > 0) {
+						Frame.writeMessage(outputStream, (int) nextRequestId++, command);
+					} else {
+						outputStream.writeUTF(KeepAlive.withRequestId(command, nextRequestId++));
+					}
+				}
+				outputStream.flush();
+				responses.add(readResponse());
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		return responses;
+	}
+
+	/**
+	 * The method reads the messages of one response up to its end-of-response message.
+	 */
+	private List<Message> readResponse() throws IOException {
+		if (framing > 0) return readFrames(inputStream);
+		List<Message> messages = new ArrayList<>();
+		String data;
+		while (!KeepAlive.isEndOfResponse(data = inputStream.readUTF())) {
+			messages.add(new Message(MessageType.STRING, data, null, null));
+		}
+		return messages;
+	}
+
+	/**
+	 * The method checks that an idle persistent connection is still usable. The server must not
+	 * have closed it or sent anything while no command was outstanding.
+	 * @return true if the connection can be used
+	 */
+	public boolean isHealthy() {
+		if (socket.isClosed()) return false;
+		try {
+			if (inputStream.available() > 0) return false;
+			socket.setSoTimeout(1);
+			try {
+				inputStream.read();
+				return false;
+			} catch (SocketTimeoutException e) {
+				return true;
+			} finally {
+				socket.setSoTimeout(timeout);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * The method reads the frames of one response up to its END frame. File contents are skipped.
+	 * @param inputStream
+	 * @return the messages of the response
+	 * @throws IOException
+	 */
+	private static List<Message> readFrames(DataInputStream inputStream) throws IOException {
+		List<Message> messages = new ArrayList<>();
+		Frame frame;
+		while ((frame = Frame.read(inputStream)).getType() != Frame.END) {
+			if (frame.getType() == Frame.JSON) {
+				messages.add(new Message(MessageType.STRING, frame.getMessage(), null, null));
+			} else {
+				inputStream.skipBytes(frame.getLength());
+			}
+		}
+		return messages;
+	}
+
+	private static Socket connect(ServerBean serverBean, int timeout) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(serverBean.resolve(), serverBean.getPort()), timeout);
+			socket.setSoTimeout(timeout);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	/**
+	 * The exception thrown when the server turns a connection away because it is busy. The
+	 * message is the answer of the server.
+	 */
+	public static class BusyException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public BusyException(String response) {
+			super(response);
+		}
+	}
+
+	public ServerBean getServerBean() {
+		return serverBean;
+	}
+
+	/**
+	 * @return true if the connection holds a thread of the server while it is open, even when idle
+	 */
+	public boolean isThreadPerConnection() {
+		return threadPerConnection;
+	}
+
+	public boolean isClosed() {
+		return socket.isClosed();
+	}
+
+	/**
+	 * The method closes the persistent connection.
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * The method is to establish a connection with a specific server. Send the message and
 	 * receive the messages from the server and return them.
@@ -22,17 +260,33 @@ public class ClientConnection {
 	 * @return messages a list of messages from the server
 	 */
 	public static List<Message> establishConnection(ServerBean serverBean, Message message) {
+		return establishConnection(serverBean, message, ServerInfo.timeout * 1000);
+	}
+
+	/**
+	 * The method is to establish a connection with a specific server, waiting for it at most the timeout.
+	 * @param serverBean an object with attributes: hostname, address, port
+	 * @param message a json string describing what the user enters in terminal
+	 * @param timeout the connect and read timeout in milliseconds
+	 * @return messages a list of messages from the server
+	 */
+	public static List<Message> establishConnection(ServerBean serverBean, Message message, int timeout) {
 		Socket socket = null;
 		Message response = null;
 		List<Message> messages = new ArrayList<>();
 		try {
-			socket = new Socket(serverBean.getAddress(), serverBean.getPort());
-			socket.setSoTimeout(ServerInfo.timeout * 1000);
+			socket = connect(serverBean, timeout);
 			DataInputStream inputStream = new DataInputStream(socket.getInputStream());
 			DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-			outputStream.writeUTF(message.getMessage().replaceAll("\0","").trim()); 
+			outputStream.writeUTF(Frame.request(message.getMessage().replaceAll("\0","").trim())); 
 			outputStream.flush();
-			String data = null;
+			String data = inputStream.readUTF();
+			if (Frame.accepted(data) > 0) {
+				// a framed response ends with an END frame instead of the server closing the socket
+				messages.addAll(readFrames(inputStream));
+				return messages;
+			}
+			messages.add(new Message(MessageType.STRING, data, null, null));
 			while ((data = inputStream.readUTF()) != null) {
 				response = new Message(MessageType.STRING, data, null, null);
 				messages.add(response);
@@ -0,0 +1,308 @@
+/**
+ * This class is a command sent by a client, bound straight from its json by a JsonReader. A
+ * resource or resource template is kept together with whether the command had it and whether it
+ * had all the fields of a resource, which is what the commands report errors on.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.wink.json4j.JSONException;
+
+public class Command {
+	private String command;
+	private boolean hasResource;
+	private boolean resourceComplete;
+	private Resource resource;
+	private boolean hasResourceTemplate;
+	private boolean templateComplete;
+	private Resource resourceTemplate;
+	private Long offset;
+	private Long length;
+	private Boolean relay;
+	private String secret;
+	private List<ServerBean> serverList;
+	private PeerSummaries.Summary summary;
+	private Map<String, FederatedIndex.Position> index;
+	private Membership.Update membership;
+	private List<ServerBean> shuffle;
+	private Integer hops;
+	private String queryId;
+	private Long timeLeft;
+
+	/**
+	 * The method parses a command.
+	 * @param json a json string
+	 * @return the command
+	 * @throws JSONException if the json is malformed, has no command or a field has the wrong type
+	 */
+	public static Command parse(String json) throws JSONException {
+		Command command = new Command();
+		JsonReader reader = new JsonReader(json);
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "command":
+				command.command = reader.nextString();
+				break;
+			case "resource":
+				command.hasResource = true;
+				command.resource = command.readResource(reader, false);
+				command.resourceComplete = command.resource != null;
+				break;
+			case "resourceTemplate":
+				command.hasResourceTemplate = true;
+				command.resourceTemplate = command.readResource(reader, true);
+				command.templateComplete = command.resourceTemplate != null;
+				break;
+			case "relay":
+				command.relay = reader.nextBoolean();
+				break;
+			case "secret":
+				command.secret = reader.nextString();
+				break;
+			case "serverList":
+				command.serverList = readServerList(reader);
+				break;
+			case "summary":
+				command.summary = PeerSummaries.read(reader);
+				break;
+			case "index":
+				command.index = FederatedIndex.readDigest(reader);
+				break;
+			case "membership":
+				command.membership = Membership.read(reader);
+				break;
+			case "shuffle":
+				command.shuffle = readServerList(reader);
+				break;
+			case "hops":
+				command.hops = reader.nextInt();
+				break;
+			case "queryId":
+				command.queryId = reader.nextString();
+				break;
+			case "timeLeft":
+				command.timeLeft = reader.nextLong();
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (command.command == null)
+			throw new JSONException("missing command");
+		return command;
+	}
+
+	/**
+	 * The method reads a resource, and the range of a fetch from a resource template.
+	 * @return the resource, or null if it doesn't have all the fields of a resource
+	 * @throws JSONException if the resource is malformed or invalid
+	 */
+	private Resource readResource(JsonReader reader, boolean template) throws JSONException {
+		Resource resource = new Resource();
+		int fields;
+		try {
+			fields = ResourceCodec.readFields(reader, resource, template ? (name, value) -> {
+				if (name.equals("offset")) {
+					offset = value.nextLong();
+				} else if (name.equals("length")) {
+					length = value.nextLong();
+				} else {
+					value.skipValue();
+				}
+			} : null);
+		} catch (IllegalArgumentException e) {
+			throw new JSONException(e.getMessage());
+		}
+		return fields == ResourceCodec.ALL_FIELDS ? resource : null;
+	}
+
+	/**
+	 * The method reads a server list, skipping entries without a hostname or port.
+	 */
+	static List<ServerBean> readServerList(JsonReader reader) throws JSONException {
+		List<ServerBean> serverList = new ArrayList<>();
+		reader.beginArray();
+		while (reader.hasNext()) {
+			String hostname = null;
+			Integer port = null;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				switch (reader.nextName()) {
+				case "hostname":
+					hostname = reader.nextString();
+					break;
+				case "port":
+					port = reader.nextInt();
+					break;
+				default:
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if (hostname != null && port != null) {
+				serverList.add(new ServerBean(hostname, port));
+			}
+		}
+		reader.endArray();
+		return serverList;
+	}
+
+	/**
+	 * The method builds the json of a query a server relays to another server, which doesn't
+	 * pass it on. The query id marks it as coming from a server.
+	 * @param template the resource template
+	 * @param queryId the id of the query
+	 * @return the json string
+	 */
+	public static String query(Resource template, String queryId) {
+		StringBuilder builder = new StringBuilder(256);
+		builder.append("{\"command\":\"QUERY\",\"relay\":false,\"queryId\":");
+		ResourceCodec.writeString(builder, queryId);
+		builder.append(",\"resourceTemplate\":");
+		ResourceCodec.write(builder, template, template.getOwner(), template.getServerBean());
+		builder.append('}');
+		return builder.toString();
+	}
+
+	/**
+	 * The method builds the json of a query relayed along the overlay.
+	 * @param template the resource template
+	 * @param hops how many more times the query is passed on
+	 * @param queryId the id every copy of the query shares
+	 * @param timeLeft the time in milliseconds the server has to answer in, relays included
+	 * @return the json string
+	 */
+	public static String query(Resource template, int hops, String queryId, long timeLeft) {
+		StringBuilder builder = new StringBuilder(256);
+		builder.append("{\"command\":\"QUERY\",\"relay\":true,\"hops\":").append(hops).append(",\"queryId\":");
+		ResourceCodec.writeString(builder, queryId);
+		builder.append(",\"timeLeft\":").append(timeLeft);
+		builder.append(",\"resourceTemplate\":");
+		ResourceCodec.write(builder, template, template.getOwner(), template.getServerBean());
+		builder.append('}');
+		return builder.toString();
+	}
+
+	public String getCommand() {
+		return command;
+	}
+
+	public boolean hasResource() {
+		return hasResource;
+	}
+
+	/**
+	 * @return true if the resource has all the fields of a resource
+	 */
+	public boolean isResourceComplete() {
+		return resourceComplete;
+	}
+
+	public Resource getResource() {
+		return resource;
+	}
+
+	public boolean hasResourceTemplate() {
+		return hasResourceTemplate;
+	}
+
+	/**
+	 * @return true if the resource template has all the fields of a resource
+	 */
+	public boolean isTemplateComplete() {
+		return templateComplete;
+	}
+
+	public Resource getResourceTemplate() {
+		return resourceTemplate;
+	}
+
+	/**
+	 * @return the first byte a fetch asks for, null if it asks for the whole file
+	 */
+	public Long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * @return the number of bytes a fetch asks for, null if it asks for the rest of the file
+	 */
+	public Long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return whether a query is relayed, null if the command doesn't say
+	 */
+	public Boolean getRelay() {
+		return relay;
+	}
+
+	public String getSecret() {
+		return secret;
+	}
+
+	/**
+	 * @return the servers of an exchange, null if the command has no server list
+	 */
+	public List<ServerBean> getServerList() {
+		return serverList;
+	}
+
+	/**
+	 * @return the resource summary of the server that sent an exchange, null if it sent none
+	 */
+	public PeerSummaries.Summary getSummary() {
+		return summary;
+	}
+
+	/**
+	 * @return the digest of the federated index of the server that sent an exchange, null if it sent none
+	 */
+	public Map<String, FederatedIndex.Position> getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the membership part of an exchange, null if the server that sent it only sent a server list
+	 */
+	public Membership.Update getMembership() {
+		return membership;
+	}
+
+	/**
+	 * @return the servers an exchange shuffles into the views of the overlay, null if it sent none
+	 */
+	public List<ServerBean> getShuffle() {
+		return shuffle;
+	}
+
+	/**
+	 * @return how many more times a query relayed along the overlay is passed on, null if the command doesn't say
+	 */
+	public Integer getHops() {
+		return hops;
+	}
+
+	/**
+	 * @return the id of a query relayed by another server, null if the command has none
+	 */
+	public String getQueryId() {
+		return queryId;
+	}
+
+	/**
+	 * @return the time in milliseconds a query relayed along the overlay has to be answered in, null if the command doesn't say
+	 */
+	public Long getTimeLeft() {
+		return timeLeft;
+	}
+}
@@ -6,21 +6,24 @@
 
 package EZShare;
 
-import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.FileInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.List;
 
 import org.apache.log4j.Logger;
 
-public class Communication implements Runnable {
+public class Communication implements Runnable, ResponseSink {
 	private Socket clientSocket;
 	private DataInputStream inputStream;
 	private DataOutputStream outputStream;
 	private ServerCommandProcessor processor;
+	private IOException sendFailure;
+	private boolean keepAlive;
+	// the framing version of the connection, 0 for writeUTF messages
+	private int framing;
+	private int requestId;
 	Logger logger = Logger.getLogger(Communication.class);
 	
 	/**
@@ -46,29 +49,18 @@ public class Communication implements Runnable {
 		try {
 			String commandStr = inputStream.readUTF();
 			logger.debug("RECEIVED: " + commandStr);
-			// server messages from processCommand(commandStr)
-			List<Message> messages = processor.processCommand(commandStr);
-			for (Message message : messages) { 
-				if (message.getType() == MessageType.STRING) {
-					outputStream.writeUTF(message.getMessage());
-					outputStream.flush();
-					logger.debug("SENT: " + message.getMessage());
-				} else if (message.getType() == MessageType.BYTES) {
-					outputStream.write(message.getBytes());
-					outputStream.flush();
-					logger.debug("SENT: " + message.getBytes().length + "B");
-				} else if(message.getType() == MessageType.FILE) {
-					BufferedInputStream bufferedInputStream = new BufferedInputStream(new FileInputStream(message.getFile()));
-					int bufferSize = 1024;
-					byte[] bufferArray = new byte[bufferSize];
-					int read = 0;
-					while ((read = bufferedInputStream.read(bufferArray)) != -1){
-						outputStream.write(bufferArray, 0, read);
-					}
-					outputStream.flush();
-					bufferedInputStream.close();
-					logger.debug("FILE SENT: " + message.getFile().getName());
+			framing = Frame.negotiate(commandStr);
+			if (KeepAlive.isHandshake(commandStr)) {
+				keepAlive();
+			} else {
+				if (framing > 0) {
+					outputStream.writeUTF(Frame.acknowledgement(framing));
 				}
+				// server messages are sent as soon as processCommand(commandStr) produces them
+				processor.processCommand(commandStr, clientSocket.getInetAddress(), this);
+				endResponse(commandStr);
+				if (sendFailure != null)
+					throw sendFailure;
 			}
 			inputStream.close();
 			outputStream.close();
@@ -83,4 +75,107 @@ public class Communication implements Runnable {
 			}
 		}
 	}
+
+	/**
+	 * The method answers commands on a persistent connection until the client closes it or it
+	 * stays idle longer than the timeout. Every response ends with an end-of-response message.
+	 * @throws IOException
+	 */
+	private void keepAlive() throws IOException {
+		keepAlive = true;
+		outputStream.writeUTF(KeepAlive.handshakeResponse(framing, true));
+		outputStream.flush();
+		while (sendFailure == null) {
+			String commandStr;
+			try {
+				if (framing > 0) {
+					Frame frame = Frame.readCommand(inputStream);
+					requestId = frame.getRequestId();
+					commandStr = frame.getMessage();
+				} else {
+					commandStr = inputStream.readUTF();
+				}
+			} catch (EOFException e) {
+				return;
+			}
+			logger.debug("RECEIVED: " + commandStr);
+			processor.processCommand(commandStr, clientSocket.getInetAddress(), this);
+			endResponse(commandStr);
+		}
+		throw sendFailure;
+	}
+
+	/**
+	 * The method ends the response to a command, with an END frame on framed connections and an
+	 * end-of-response message on other persistent connections.
+	 * @param commandStr the command that has been answered
+	 */
+	private void endResponse(String commandStr) {
+		if (framing > 0) {
+			if (sendFailure != null) return;
+			try {
+				Frame.writeEnd(outputStream, requestId);
+				outputStream.flush();
+			} catch (IOException e) {
+				sendFailure = e;
+			}
+		} else if (keepAlive) {
+			send(new Message(KeepAlive.endOfResponse(KeepAlive.requestId(commandStr))));
+		}
+	}
+
+	/**
+	 * The method sends a message of the response to the client. Once sending has failed the
+	 * remaining messages are dropped.
+	 * @param message
+	 */
+	public void send(Message message) {
+		if (sendFailure != null) return;
+		try {
+			if (message.getType() == MessageType.STRING) {
+				if (framing > 0) {
+					Frame.writeMessage(outputStream, requestId, message);
+				} else {
+					Frame.writeUTF(outputStream, message);
+				}
+				outputStream.flush();
+				logger.debug("SENT: " + message.getMessage());
+			} else if (message.getType() == MessageType.BYTES) {
+				if (framing > 0) {
+					Frame.writeDataHeader(outputStream, requestId, message.getBytes().length);
+				}
+				outputStream.write(message.getBytes());
+				outputStream.flush();
+				logger.debug("SENT: " + message.getBytes().length + "B");
+			} else if(message.getType() == MessageType.FILE) {
+				sendFile(message);
+				logger.debug("FILE SENT: " + message.getFile().getName());
+			}
+		} catch (IOException e) {
+			sendFailure = e;
+		}
+	}
+
+	/**
+	 * The method sends the part of the file the message describes. On framed connections the
+	 * file is split into DATA frames.
+	 * @param message
+	 * @throws IOException
+	 */
+	private void sendFile(Message message) throws IOException {
+		if (framing == 0) {
+			FileTransfer.send(message.getFile(), message.getOffset(), message.getLength(), clientSocket, outputStream);
+			return;
+		}
+		long position = message.getOffset();
+		long remaining = message.getLength();
+		while (remaining > 0) {
+			int length = (int) Math.min(remaining, Frame.MAX_DATA_LENGTH);
+			Frame.writeDataHeader(outputStream, requestId, length);
+			outputStream.flush();
+			FileTransfer.send(message.getFile(), position, length, clientSocket, outputStream);
+			position += length;
+			remaining -= length;
+		}
+	}
 }
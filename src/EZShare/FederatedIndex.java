@@ -0,0 +1,479 @@
+/**
+ * This class keeps copies of the public resources (those in the default channel) of other
+ * servers, so relayed queries can be answered locally instead of asking every server.
+ * Copies are brought up to date with the EXCHANGE gossip: the server that sends an exchange adds
+ * a digest with the epoch and version it holds of every server it knows, and the other server
+ * answers with what the sender is missing. For its own resources that is the changes since the
+ * sender's version, or a full listing if the sender has none or is too far behind. For the copies
+ * it holds of other servers it sends those which are newer than the sender's, in pages the same
+ * way, so copies spread from server to server. Responses are split into pages that fit in a writeUTF message and the
+ * sender asks again until it has caught up.
+ * The epoch of a server changes when it restarts, which starts its copies afresh. Each copy
+ * carries the time its server last confirmed it, and is only used to answer queries while that
+ * time is within the staleness bound.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.wink.json4j.JSONException;
+
+public class FederatedIndex {
+	private static Logger logger = Logger.getLogger(FederatedIndex.class);
+	// keeps a response well within the 64KB limit of writeUTF messages
+	private static final int PAGE_SIZE = 48 * 1024;
+
+	private long epoch;
+	// copies of other servers, by the name the server gives itself (hostname:port)
+	private Map<String, Replica> replicas;
+	private AtomicLong answered = new AtomicLong();
+
+	public FederatedIndex() {
+		epoch = System.currentTimeMillis();
+		replicas = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * The method builds the digest sent with an exchange: the position of this server and of every
+	 * copy this server holds.
+	 * @param store the resources of this server
+	 * @param myServer
+	 * @return the digest as a json object
+	 */
+	public String digest(ResourceStore store, ServerBean myServer) {
+		StringBuilder builder = new StringBuilder("{");
+		appendPosition(builder, myServer.toString(), epoch, store.getVersion(), null, System.currentTimeMillis());
+		for (Replica replica : replicas.values()) {
+			synchronized (replica) {
+				builder.append(',');
+				appendPosition(builder, replica.origin, replica.epoch, replica.version, replica.cursor, replica.time);
+			}
+		}
+		return builder.append('}').toString();
+	}
+
+	private static void appendPosition(StringBuilder builder, String origin, long epoch, long version, String cursor, long time) {
+		ResourceCodec.writeString(builder, origin);
+		builder.append(":{\"epoch\":").append(epoch).append(",\"version\":").append(version).append(",\"time\":").append(time);
+		if (cursor != null) {
+			builder.append(",\"cursor\":");
+			ResourceCodec.writeString(builder, cursor);
+		}
+		builder.append('}');
+	}
+
+	/**
+	 * The method reads the digest of an exchange.
+	 * @param reader positioned at the digest object
+	 * @return the positions by server
+	 * @throws JSONException if the json is malformed
+	 */
+	public static Map<String, Position> readDigest(JsonReader reader) throws JSONException {
+		Map<String, Position> digest = new HashMap<>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String origin = reader.nextName();
+			Position position = new Position();
+			reader.beginObject();
+			while (reader.hasNext()) {
+				switch (reader.nextName()) {
+				case "epoch":
+					position.epoch = reader.nextLong();
+					break;
+				case "version":
+					position.version = reader.nextLong();
+					break;
+				case "time":
+					position.time = reader.nextLong();
+					break;
+				case "cursor":
+					position.cursor = reader.nextString();
+					break;
+				default:
+					reader.skipValue();
+				}
+			}
+			reader.endObject();
+			digest.put(origin, position);
+		}
+		reader.endObject();
+		return digest;
+	}
+
+	/**
+	 * The method builds what the sender of an exchange is missing, from its digest.
+	 * @param digest
+	 * @param store the resources of this server
+	 * @param myServer
+	 * @return the entries as a json array
+	 */
+	public String delta(Map<String, Position> digest, ResourceStore store, ServerBean myServer) {
+		StringBuilder builder = new StringBuilder("[");
+		String me = myServer.toString();
+		ownEntry(builder, digest.get(me), store, myServer);
+		for (Replica replica : replicas.values()) {
+			if (builder.length() >= PAGE_SIZE) break;
+			if (replica.origin.equals(me)) continue;
+			Position position = digest.get(replica.origin);
+			StringBuilder entry = new StringBuilder();
+			synchronized (replica) {
+				// only complete copies are passed on, and only if they are newer than the sender's
+				if (replica.cursor != null) continue;
+				boolean same = position != null && position.epoch == replica.epoch && position.version == replica.version;
+				if (same && position.cursor == null) {
+					if (position.time >= replica.time) continue;
+					startEntry(entry, replica.origin, replica.epoch, replica.version, replica.time, false);
+				} else if (same || position == null || replica.epoch > position.epoch
+						|| (replica.epoch == position.epoch && replica.version > position.version)) {
+					// the copy is sent in pages in uri order, carrying on after the sender's cursor
+					// as long as the copy hasn't changed since the listing started
+					String cursor = same ? position.cursor : "";
+					if (!replicaPage(builder, entry, replica, cursor, !same)) break;
+				} else {
+					continue;
+				}
+			}
+			entry.append('}');
+			if (builder.length() > 1) builder.append(',');
+			builder.append(entry);
+		}
+		return builder.append(']').toString();
+	}
+
+	/**
+	 * The method adds a page of the listing of a copy to the entry, in uri order.
+	 * @param cursor the last uri of the previous page, "" for the first page
+	 * @param reset true for the first page
+	 * @return false if no resource fits in the page, in which case the copy waits for the next one
+	 */
+	private static boolean replicaPage(StringBuilder builder, StringBuilder entry, Replica replica, String cursor, boolean reset) {
+		List<String> uris = new ArrayList<>();
+		for (String uri : replica.resources.keySet()) {
+			if (uri.compareTo(cursor) > 0) uris.add(uri);
+		}
+		uris.sort(null);
+		startEntry(entry, replica.origin, replica.epoch, replica.version, replica.time, reset);
+		entry.append(",\"changes\":[");
+		String last = null;
+		for (int i = 0; i < uris.size(); i++) {
+			if (builder.length() + entry.length() >= PAGE_SIZE) {
+				if (i == 0) return false;
+				last = uris.get(i - 1);
+				break;
+			}
+			if (i > 0) entry.append(',');
+			Resource resource = replica.resources.get(uris.get(i));
+			ResourceCodec.write(entry, resource, resource.getOwner(), resource.getServerBean());
+		}
+		entry.append(']');
+		if (last != null) {
+			entry.append(",\"cursor\":");
+			ResourceCodec.writeString(entry, last);
+		}
+		return true;
+	}
+
+	/**
+	 * The method adds the entry for the resources of this server: nothing new, the changes since
+	 * the sender's version, or a page of a full listing.
+	 */
+	private void ownEntry(StringBuilder builder, Position position, ResourceStore store, ServerBean myServer) {
+		String me = myServer.toString();
+		long now = System.currentTimeMillis();
+		if (position != null && position.epoch == epoch) {
+			List<ResourceStore.Change> changes = store.changesSince(position.version);
+			if (changes != null && position.cursor != null) {
+				listing(builder, store, myServer, position.version, position.cursor, false);
+				return;
+			}
+			if (changes != null) {
+				long version = position.version;
+				StringBuilder page = new StringBuilder();
+				boolean more = false;
+				for (ResourceStore.Change change : changes) {
+					if (builder.length() + page.length() >= PAGE_SIZE) {
+						more = true;
+						break;
+					}
+					// the version of the entry is the last change it holds
+					version = change.getVersion();
+					if (!change.getChannel().equals("")) continue;
+					if (page.length() > 0) page.append(',');
+					if (change.getResource() == null) {
+						ResourceCodec.writeString(page, change.getUri().toString());
+					} else {
+						page.append(ResourceCodec.publicMessage(change.getResource(), myServer).getMessage());
+					}
+				}
+				startEntry(builder, me, epoch, version, now, false);
+				builder.append(",\"changes\":[").append(page).append(']');
+				if (more) builder.append(",\"more\":true");
+				builder.append('}');
+				return;
+			}
+		}
+		listing(builder, store, myServer, -1, "", true);
+	}
+
+	/**
+	 * The method adds a page of the listing of the public resources of this server, in uri order.
+	 * The listing is as of the version it started at, later changes are sent as changes after it.
+	 * @param version the version the listing started at, -1 to start a new listing
+	 * @param cursor the last uri of the previous page, "" for the first page
+	 * @param reset true for the first page
+	 */
+	private void listing(StringBuilder builder, ResourceStore store, ServerBean myServer, long version, String cursor, boolean reset) {
+		List<Resource> resources = new ArrayList<>();
+		try (ResourceStore.Snapshot snapshot = store.snapshot()) {
+			if (version < 0) {
+				version = snapshot.getVersion();
+			}
+			for (Resource resource : snapshot.resources()) {
+				if (resource.getChannel().equals("") && resource.getUri().toString().compareTo(cursor) > 0) {
+					resources.add(resource);
+				}
+			}
+		}
+		resources.sort(Comparator.comparing(resource -> resource.getUri().toString()));
+		startEntry(builder, myServer.toString(), epoch, version, System.currentTimeMillis(), reset);
+		builder.append(",\"changes\":[");
+		String last = null;
+		for (int i = 0; i < resources.size(); i++) {
+			if (builder.length() >= PAGE_SIZE) {
+				break;
+			}
+			if (i > 0) builder.append(',');
+			builder.append(ResourceCodec.publicMessage(resources.get(i), myServer).getMessage());
+			last = resources.get(i).getUri().toString();
+			if (i == resources.size() - 1) {
+				last = null;
+			}
+		}
+		builder.append(']');
+		if (last != null) {
+			builder.append(",\"cursor\":");
+			ResourceCodec.writeString(builder, last);
+		} else if (version != store.getVersion()) {
+			// the listing is complete, but the changes made during it are still to be sent
+			builder.append(",\"more\":true");
+		}
+		builder.append('}');
+	}
+
+	private static void startEntry(StringBuilder builder, String origin, long epoch, long version, long time, boolean reset) {
+		if (builder.length() > 1) builder.append(',');
+		builder.append("{\"origin\":");
+		ResourceCodec.writeString(builder, origin);
+		builder.append(",\"epoch\":").append(epoch).append(",\"version\":").append(version)
+				.append(",\"time\":").append(time).append(",\"reset\":").append(reset);
+	}
+
+	/**
+	 * The method applies the entries of the response to an exchange to the copies.
+	 * @param response a json string
+	 * @param myServer
+	 * @return true if the other server has more to send
+	 */
+	public boolean apply(String response, ServerBean myServer) {
+		boolean more = false;
+		try {
+			JsonReader reader = new JsonReader(response);
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (!reader.nextName().equals("index")) {
+					reader.skipValue();
+					continue;
+				}
+				reader.beginArray();
+				while (reader.hasNext()) {
+					more |= applyEntry(reader, myServer);
+				}
+				reader.endArray();
+			}
+			reader.endObject();
+		} catch (JSONException e) {
+			logger.error("invalid index entries: " + e.getMessage());
+			return false;
+		}
+		return more;
+	}
+
+	private boolean applyEntry(JsonReader reader, ServerBean myServer) throws JSONException {
+		String origin = null;
+		long entryEpoch = 0;
+		long version = 0;
+		long time = 0;
+		boolean reset = false;
+		boolean more = false;
+		String cursor = null;
+		List<Object> changes = new ArrayList<>();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "origin":
+				origin = reader.nextString();
+				break;
+			case "epoch":
+				entryEpoch = reader.nextLong();
+				break;
+			case "version":
+				version = reader.nextLong();
+				break;
+			case "time":
+				time = reader.nextLong();
+				break;
+			case "reset":
+				reset = reader.nextBoolean();
+				break;
+			case "more":
+				more = reader.nextBoolean();
+				break;
+			case "cursor":
+				cursor = reader.nextString();
+				break;
+			case "changes":
+				reader.beginArray();
+				while (reader.hasNext()) {
+					if (reader.peek() == JsonReader.Token.STRING) {
+						changes.add(reader.nextString());
+						continue;
+					}
+					Resource resource = new Resource();
+					try {
+						if (ResourceCodec.readFields(reader, resource, null) == ResourceCodec.ALL_FIELDS) {
+							changes.add(resource);
+						}
+					} catch (IllegalArgumentException e) {
+						// a resource this server can't read is left out of the copy
+					}
+				}
+				reader.endArray();
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (origin == null || origin.equals(myServer.toString())) return false;
+		Replica replica = replicas.get(origin);
+		if (reset) {
+			if (replica != null && replica.epoch > entryEpoch) return false;
+			int colon = origin.lastIndexOf(':');
+			ServerBean serverBean;
+			try {
+				serverBean = new ServerBean(origin.substring(0, colon), Integer.parseInt(origin.substring(colon + 1)));
+			} catch (RuntimeException e) {
+				return false;
+			}
+			replica = new Replica(origin, serverBean, entryEpoch);
+			replicas.put(origin, replica);
+		} else if (replica == null || replica.epoch != entryEpoch) {
+			return false;
+		}
+		synchronized (replica) {
+			for (Object change : changes) {
+				if (change instanceof String) {
+					replica.resources.remove(change);
+				} else {
+					Resource resource = (Resource) change;
+					replica.resources.put(resource.getUri().toString(), resource);
+				}
+			}
+			replica.version = version;
+			replica.cursor = cursor;
+			// a copy is only as recent as its server says once it has caught up
+			if (cursor == null && !more) {
+				replica.time = time;
+			}
+		}
+		return more || cursor != null;
+	}
+
+	/**
+	 * The method answers a query for the resources of a server from its copy, if it has a recent one.
+	 * @param serverBean
+	 * @param template
+	 * @param results receives the resources that match
+	 * @return true if the query was answered, false if the server has to be asked
+	 */
+	public boolean query(ServerBean serverBean, Resource template, List<Message> results) {
+		String key = serverBean.getKey();
+		for (Replica replica : replicas.values()) {
+			if (!replica.serverBean.getKey().equals(key)) continue;
+			synchronized (replica) {
+				if (replica.cursor != null || System.currentTimeMillis() - replica.time > ServerInfo.federationMaxStaleness * 1000L)
+					return false;
+				for (Resource resource : replica.resources.values()) {
+					if (resource.matches(template)) {
+						results.add(ResourceCodec.publicMessage(resource, resource.getServerBean()));
+					}
+				}
+			}
+			answered.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The method drops the copy of a server, e.g. when it is removed from the server list.
+	 * @param serverBean
+	 */
+	public void remove(ServerBean serverBean) {
+		replicas.values().removeIf(replica -> replica.serverBean.getKey().equals(serverBean.getKey()));
+	}
+
+	/**
+	 * The method describes the copies for the STATS command.
+	 * @return the statistics as a json string
+	 */
+	public String statistics() {
+		int resources = 0;
+		for (Replica replica : replicas.values()) {
+			synchronized (replica) {
+				resources += replica.resources.size();
+			}
+		}
+		return "{\"replicas\":" + replicas.size() + ",\"resources\":" + resources + ",\"answered\":" + answered.get() + "}";
+	}
+
+	/**
+	 * How far a server has copied the resources of another server.
+	 */
+	public static class Position {
+		private long epoch;
+		private long version;
+		private long time;
+		private String cursor;
+	}
+
+	/**
+	 * The copy of the public resources of a server. The cursor is set while a listing is incomplete.
+	 */
+	private static class Replica {
+		private String origin;
+		private ServerBean serverBean;
+		private long epoch;
+		private long version;
+		private long time;
+		private String cursor;
+		private Map<String, Resource> resources;
+
+		private Replica(String origin, ServerBean serverBean, long epoch) {
+			this.origin = origin;
+			this.serverBean = serverBean;
+			this.epoch = epoch;
+			this.resources = new HashMap<>();
+		}
+	}
+}
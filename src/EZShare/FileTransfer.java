@@ -0,0 +1,87 @@
+/**
+ * This class is for sending file contents to a socket. If the socket has a channel the file is
+ * transferred with FileChannel.transferTo so the bytes never enter the heap, otherwise it is
+ * copied through a pooled direct buffer.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class FileTransfer {
+	private static final int BUFFER_SIZE = 256 * 1024;
+	private static Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * The method sends a part of the file to the socket.
+	 * @param file the file to send
+	 * @param position the first byte to send
+	 * @param count the number of bytes to send
+	 * @param socket the socket to send the file to
+	 * @param outputStream the output stream of the socket, used if the socket has no channel
+	 * @throws IOException if the file is shorter than expected or the socket fails
+	 */
+	public static void send(File file, long position, long count, Socket socket, OutputStream outputStream) throws IOException {
+		try (FileChannel fileChannel = new FileInputStream(file).getChannel()) {
+			if (socket.getChannel() != null) {
+				transfer(fileChannel, position, count, socket.getChannel());
+			} else {
+				copy(fileChannel, position, count, Channels.newChannel(outputStream));
+			}
+		}
+	}
+
+	/**
+	 * The method sends the file with zero-copy transfers.
+	 */
+	private static void transfer(FileChannel fileChannel, long position, long count, WritableByteChannel target) throws IOException {
+		while (count > 0) {
+			long sent = fileChannel.transferTo(position, count, target);
+			if (sent <= 0)
+				throw new IOException("file is shorter than expected");
+			position += sent;
+			count -= sent;
+		}
+	}
+
+	/**
+	 * The method sends the file through a direct buffer taken from the pool.
+	 */
+	private static void copy(FileChannel fileChannel, long position, long count, WritableByteChannel target) throws IOException {
+		ByteBuffer buffer = bufferPool.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		try {
+			while (count > 0) {
+				buffer.clear();
+				if (count < buffer.capacity()) {
+					buffer.limit((int) count);
+				}
+				int read = fileChannel.read(buffer, position);
+				if (read <= 0)
+					throw new IOException("file is shorter than expected");
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					target.write(buffer);
+				}
+				position += read;
+				count -= read;
+			}
+		} finally {
+			bufferPool.offer(buffer);
+		}
+	}
+}
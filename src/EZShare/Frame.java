@@ -0,0 +1,282 @@
+/**
+ * This class describes the binary framing of messages. Without it every message is sent with
+ * writeUTF, which limits a message to 64KB and leaves the file contents of a fetch to be told
+ * apart from the next message only by counting resourceSize.
+ * A client asks for framing by adding "framing" with the highest version it supports to the first
+ * command of a connection. A server that supports framing acknowledges with a single writeUTF
+ * message {"framing":version}, or with the keep-alive handshake response carrying the version,
+ * and from then on both sides send frames. Servers that don't support framing ignore the field.
+ * A frame is a 12 byte header followed by the payload:
+ *   byte  version   the framing version, 1
+ *   byte  type      JSON, DATA or END
+ *   short flags     reserved, 0
+ *   int   requestId the request the frame belongs to
+ *   int   length    the length of the payload
+ * JSON frames carry a message in UTF-8, DATA frames carry file contents, and an END frame with
+ * no payload ends the response to a request.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class Frame {
+	public static final int VERSION = 1;
+	public static final byte JSON = 1;
+	public static final byte DATA = 2;
+	public static final byte END = 3;
+	public static final int HEADER_SIZE = 12;
+	// messages are read into memory, so their size is limited
+	public static final int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+	// commands are small, a server refuses longer command frames
+	public static final int MAX_COMMAND_LENGTH = 1024 * 1024;
+	// file contents are split into frames of at most this size
+	public static final int MAX_DATA_LENGTH = 8 * 1024 * 1024;
+	// the longest message writeUTF can write
+	public static final int MAX_UTF_LENGTH = 65535;
+
+	private byte type;
+	private int requestId;
+	private int length;
+	private String message;
+
+	private Frame(byte type, int requestId, int length, String message) {
+		this.type = type;
+		this.requestId = requestId;
+		this.length = length;
+		this.message = message;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	/**
+	 * @return the length of the payload
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the message of a JSON frame, null for other frames
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * The method adds the framing request to the first command of a connection.
+	 * @param command a json string
+	 * @return the command asking for framing
+	 */
+	public static String request(String command) {
+		if (!command.startsWith("{")) return command;
+		return "{\"framing\":" + VERSION + (command.startsWith("{}") ? "" : ",") + command.substring(1);
+	}
+
+	/**
+	 * The method finds the framing version to use for a connection from its first command.
+	 * @param command a json string
+	 * @return the version, or 0 if the client didn't ask for framing
+	 */
+	public static int negotiate(String command) {
+		return Math.max(0, Math.min(VERSION, accepted(command)));
+	}
+
+	/**
+	 * The method builds the message that acknowledges framing after the first command.
+	 * @param version
+	 * @return the message as a json string
+	 */
+	public static String acknowledgement(int version) {
+		return "{\"framing\":" + version + "}";
+	}
+
+	/**
+	 * The method reads the framing version from the first message of a response.
+	 * @param message a json string
+	 * @return the version, or 0 if the server doesn't use framing
+	 */
+	public static int accepted(String message) {
+		if (!message.contains("\"framing\"")) return 0;
+		try {
+			return Integer.parseInt(JsonReader.field(message, "framing"));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * The method builds the header of a frame.
+	 * @param type
+	 * @param requestId
+	 * @param length the length of the payload
+	 * @return the header ready to be written
+	 */
+	public static ByteBuffer header(byte type, int requestId, int length) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put((byte) VERSION).put(type).putShort((short) 0).putInt(requestId).putInt(length);
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * The method encodes a message as a JSON frame.
+	 * @param requestId
+	 * @param message a json string
+	 * @return the frame ready to be written
+	 */
+	public static ByteBuffer encode(int requestId, String message) {
+		return encode(requestId, message.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static ByteBuffer encode(int requestId, byte[] payload) {
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		frame.put(header(JSON, requestId, payload.length)).put(payload);
+		frame.flip();
+		return frame;
+	}
+
+	public static void writeMessage(DataOutputStream outputStream, int requestId, String message) throws IOException {
+		ByteBuffer frame = encode(requestId, message);
+		outputStream.write(frame.array(), 0, frame.limit());
+	}
+
+	/**
+	 * The method writes a message as a JSON frame, using the bytes it was encoded into ahead of time if any.
+	 * @param outputStream
+	 * @param requestId
+	 * @param message
+	 * @throws IOException
+	 */
+	public static void writeMessage(DataOutputStream outputStream, int requestId, Message message) throws IOException {
+		if (message.getEncoded() == null) {
+			writeMessage(outputStream, requestId, message.getMessage());
+			return;
+		}
+		outputStream.write(header(JSON, requestId, message.getEncoded().length).array());
+		outputStream.write(message.getEncoded());
+	}
+
+	/**
+	 * The method writes a message the way writeUTF does, using the bytes it was encoded into ahead
+	 * of time if any. Those messages are ASCII, where UTF-8 and writeUTF's encoding are the same.
+	 * @param outputStream
+	 * @param message
+	 * @throws IOException
+	 */
+	public static void writeUTF(DataOutputStream outputStream, Message message) throws IOException {
+		byte[] encoded = message.getEncoded();
+		if (encoded == null || encoded.length > MAX_UTF_LENGTH) {
+			outputStream.writeUTF(message.getMessage());
+			return;
+		}
+		outputStream.writeShort(encoded.length);
+		outputStream.write(encoded);
+	}
+
+	public static void writeEnd(DataOutputStream outputStream, int requestId) throws IOException {
+		outputStream.write(header(END, requestId, 0).array());
+	}
+
+	public static void writeDataHeader(DataOutputStream outputStream, int requestId, int length) throws IOException {
+		outputStream.write(header(DATA, requestId, length).array());
+	}
+
+	/**
+	 * The method reads the next frame. The payload of a JSON frame is read with it, the payload
+	 * of a DATA frame is left in the stream for the caller to read.
+	 * @param inputStream
+	 * @return the frame
+	 * @throws ProtocolException if the frame is malformed
+	 * @throws IOException if the connection fails
+	 */
+	public static Frame read(DataInputStream inputStream) throws IOException {
+		return read(inputStream, false);
+	}
+
+	/**
+	 * The method reads the next command a server receives, which has to be a JSON frame of at
+	 * most MAX_COMMAND_LENGTH. The length is checked before the payload is read.
+	 * @param inputStream
+	 * @return the frame
+	 * @throws ProtocolException if the frame is malformed, not a JSON frame or too long
+	 * @throws IOException if the connection fails
+	 */
+	public static Frame readCommand(DataInputStream inputStream) throws IOException {
+		return read(inputStream, true);
+	}
+
+	private static Frame read(DataInputStream inputStream, boolean command) throws IOException {
+		byte[] header = new byte[HEADER_SIZE];
+		inputStream.readFully(header);
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		Frame frame = parseHeader(buffer);
+		if (command && frame.type != JSON)
+			throw new ProtocolException("expected a command");
+		if (command && frame.length > MAX_COMMAND_LENGTH)
+			throw new ProtocolException("command frame of " + frame.length + " bytes is too long");
+		if (frame.type == JSON) {
+			byte[] payload = new byte[frame.length];
+			inputStream.readFully(payload);
+			frame.message = new String(payload, StandardCharsets.UTF_8);
+		} else if (frame.type == END) {
+			inputStream.skipBytes(frame.length);
+		}
+		return frame;
+	}
+
+	/**
+	 * The method decodes a JSON frame from the buffer if it has been fully received.
+	 * @param buffer a buffer in write mode
+	 * @return the frame, or null if it is incomplete
+	 * @throws ProtocolException if the frame is malformed or not a JSON frame
+	 */
+	public static Frame decode(ByteBuffer buffer) throws ProtocolException {
+		int frameSize = frameSize(buffer);
+		if (frameSize < 0 || buffer.position() < frameSize) return null;
+		Frame frame = parseHeader(ByteBuffer.wrap(buffer.array(), 0, HEADER_SIZE));
+		if (frame.type != JSON)
+			throw new ProtocolException("expected a JSON frame");
+		frame.message = new String(buffer.array(), HEADER_SIZE, frame.length, StandardCharsets.UTF_8);
+		return frame;
+	}
+
+	/**
+	 * The method returns the size of the frame at the start of the buffer.
+	 * @param buffer a buffer in write mode
+	 * @return the size including the header, or -1 if the header is incomplete
+	 * @throws ProtocolException if the frame is malformed
+	 */
+	public static int frameSize(ByteBuffer buffer) throws ProtocolException {
+		if (buffer.position() < HEADER_SIZE) return -1;
+		return HEADER_SIZE + parseHeader(ByteBuffer.wrap(buffer.array(), 0, HEADER_SIZE)).length;
+	}
+
+	private static Frame parseHeader(ByteBuffer header) throws ProtocolException {
+		int version = header.get();
+		byte type = header.get();
+		header.getShort();
+		int requestId = header.getInt();
+		int length = header.getInt();
+		if (version != VERSION)
+			throw new ProtocolException("unsupported framing version " + version);
+		if (type != JSON && type != DATA && type != END)
+			throw new ProtocolException("unknown frame type " + type);
+		if (length < 0 || (type == JSON && length > MAX_MESSAGE_LENGTH) || (type == DATA && length > MAX_DATA_LENGTH))
+			throw new ProtocolException("invalid frame length " + length);
+		return new Frame(type, requestId, length, null);
+	}
+}
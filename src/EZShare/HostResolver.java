@@ -0,0 +1,170 @@
+/**
+ * This class resolves the hostnames of servers and caches the answers, so a slow or failing DNS
+ * server doesn't stall exchanges and queries. Addresses are cached for a while and names that
+ * can't be resolved for a shorter while. An answer that has expired is still used while a new one
+ * is looked up in the background. Lookups that must not block, such as the key of a server in
+ * the maps, only use the cache and look the name up in the background if it isn't there.
+ * Names which are addresses already never go to DNS.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+
+public class HostResolver {
+	private static Logger logger = Logger.getLogger(HostResolver.class);
+	// names cached, expired answers are dropped beyond this
+	private static final int MAX_ENTRIES = 4096;
+	// threads looking names up in the background
+	private static final int RESOLVER_THREADS = 2;
+
+	private static Map<String, Entry> cache = new ConcurrentHashMap<>();
+	// names being looked up in the background
+	private static Set<String> pending = ConcurrentHashMap.newKeySet();
+	// the last address each name resolved to, which stays its key while a lookup fails, the least
+	// recently used names are dropped beyond MAX_ENTRIES
+	private static Map<String, String> keys = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	});
+	private static ExecutorService executor = Executors.newFixedThreadPool(RESOLVER_THREADS, runnable -> {
+		Thread thread = new Thread(runnable, "host-resolver");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private HostResolver() {
+	}
+
+	/**
+	 * The method resolves a name, looking it up if it isn't cached. An expired answer is
+	 * returned straight away and refreshed in the background.
+	 * @param hostname
+	 * @return the address
+	 * @throws UnknownHostException if the name can't be resolved
+	 */
+	public static InetAddress resolve(String hostname) throws UnknownHostException {
+		Entry entry = cache.get(hostname);
+		if (entry == null) {
+			entry = load(hostname);
+		} else if (entry.isExpired()) {
+			refresh(hostname);
+		}
+		if (entry.address == null)
+			throw new UnknownHostException(hostname);
+		return entry.address;
+	}
+
+	/**
+	 * The method returns the cached address of a name without blocking. A name that isn't cached
+	 * or has expired is looked up in the background.
+	 * @param hostname
+	 * @return the address, or null if it isn't known yet or the name can't be resolved
+	 */
+	public static InetAddress lookup(String hostname) {
+		Entry entry = cache.get(hostname);
+		if (entry == null && isLiteral(hostname)) {
+			entry = load(hostname);
+		}
+		if (entry == null || entry.isExpired()) {
+			refresh(hostname);
+		}
+		return entry == null ? null : entry.address;
+	}
+
+	/**
+	 * @param hostname
+	 * @return true if the name is known not to resolve, false if it resolves or isn't known yet
+	 */
+	public static boolean isUnresolvable(String hostname) {
+		Entry entry = cache.get(hostname);
+		return entry != null && entry.address == null;
+	}
+
+	/**
+	 * The method returns the key of a name in maps: the address it last resolved to, or the name
+	 * if it hasn't resolved yet, in which case it is looked up in the background. The key of a
+	 * name moves to its address once it resolves, and to the new address if the address changes.
+	 * @param hostname
+	 * @return the key
+	 */
+	public static String key(String hostname) {
+		String key = keys.get(hostname);
+		if (key != null) {
+			lookup(hostname);
+			return key;
+		}
+		InetAddress address = lookup(hostname);
+		return address == null ? hostname : address.getHostAddress();
+	}
+
+	private static void refresh(String hostname) {
+		if (!pending.add(hostname)) return;
+		executor.execute(() -> {
+			try {
+				load(hostname);
+			} finally {
+				pending.remove(hostname);
+			}
+		});
+	}
+
+	private static Entry load(String hostname) {
+		Entry entry;
+		try {
+			entry = new Entry(InetAddress.getByName(hostname), ServerInfo.dnsTtl * 1000L);
+			keys.put(hostname, entry.address.getHostAddress());
+		} catch (UnknownHostException e) {
+			logger.debug("cannot resolve " + hostname);
+			entry = new Entry(null, ServerInfo.dnsNegativeTtl * 1000L);
+		}
+		if (cache.size() >= MAX_ENTRIES) {
+			cache.values().removeIf(Entry::isExpired);
+		}
+		cache.put(hostname, entry);
+		return entry;
+	}
+
+	/**
+	 * The method tells whether a name is an IPv4 or IPv6 address, which is parsed without DNS.
+	 */
+	private static boolean isLiteral(String hostname) {
+		if (hostname.isEmpty()) return false;
+		if (hostname.indexOf(':') >= 0) return true;
+		for (int i = 0; i < hostname.length(); i++) {
+			char c = hostname.charAt(i);
+			if (c != '.' && (c < '0' || c > '9')) return false;
+		}
+		return true;
+	}
+
+	private static class Entry {
+		private final InetAddress address;
+		private final long expires;
+
+		private Entry(InetAddress address, long ttl) {
+			this.address = address;
+			this.expires = System.currentTimeMillis() + ttl;
+		}
+
+		private boolean isExpired() {
+			return System.currentTimeMillis() > expires;
+		}
+	}
+}
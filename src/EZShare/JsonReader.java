@@ -0,0 +1,280 @@
+/**
+ * This class reads a json string token by token without building a tree of json objects, so
+ * messages can be bound straight to Resource and Command objects. Like wink-json4j it reads
+ * numbers and booleans as strings where a string is expected, so both parse the same messages.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import org.apache.wink.json4j.JSONException;
+
+public class JsonReader {
+	public enum Token {
+		OBJECT, ARRAY, STRING, NUMBER, BOOLEAN, NULL
+	}
+
+	private String json;
+	private int position;
+
+	public JsonReader(String json) {
+		this.json = json;
+	}
+
+	/**
+	 * The method reads the value of a field of the top level object, without reading the other values.
+	 * @param json a json string
+	 * @param name the name of the field
+	 * @return the value as a string, or null if the field is missing, null or not a simple value,
+	 *         or the json is malformed
+	 */
+	public static String field(String json, String name) {
+		try {
+			JsonReader reader = new JsonReader(json);
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (reader.nextName().equals(name)) {
+					Token token = reader.peek();
+					if (token == Token.OBJECT || token == Token.ARRAY) return null;
+					return reader.nextString();
+				}
+				reader.skipValue();
+			}
+		} catch (JSONException e) {
+		}
+		return null;
+	}
+
+	public void beginObject() throws JSONException {
+		expect('{');
+	}
+
+	public void endObject() throws JSONException {
+		expect('}');
+	}
+
+	public void beginArray() throws JSONException {
+		expect('[');
+	}
+
+	public void endArray() throws JSONException {
+		expect(']');
+	}
+
+	/**
+	 * The method checks whether the current object or array has another element, and moves past
+	 * the comma in front of it.
+	 * @return true if there is another element
+	 * @throws JSONException if the json ends
+	 */
+	public boolean hasNext() throws JSONException {
+		char c = peekChar();
+		if (c == '}' || c == ']') return false;
+		if (c == ',') {
+			position++;
+			peekChar();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the type of the next value
+	 * @throws JSONException if there is no valid value
+	 */
+	public Token peek() throws JSONException {
+		char c = peekChar();
+		switch (c) {
+		case '{':
+			return Token.OBJECT;
+		case '[':
+			return Token.ARRAY;
+		case '"':
+			return Token.STRING;
+		case 't':
+		case 'f':
+			return Token.BOOLEAN;
+		case 'n':
+			return Token.NULL;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) return Token.NUMBER;
+			throw error("unexpected character '" + c + "'");
+		}
+	}
+
+	/**
+	 * @return the name of the next field of the current object
+	 * @throws JSONException
+	 */
+	public String nextName() throws JSONException {
+		if (peekChar() != '"') throw error("expected a name");
+		String name = readString();
+		expect(':');
+		return name;
+	}
+
+	/**
+	 * @return the next value as a string, null for a json null
+	 * @throws JSONException if the value is an object or array
+	 */
+	public String nextString() throws JSONException {
+		switch (peek()) {
+		case STRING:
+			return readString();
+		case NULL:
+			if (!readLiteral().equals("null")) throw error("expected null");
+			return null;
+		case NUMBER:
+		case BOOLEAN:
+			return readLiteral();
+		default:
+			throw error("expected a string");
+		}
+	}
+
+	public long nextLong() throws JSONException {
+		String value = nextString();
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw error("expected a number");
+		}
+	}
+
+	public int nextInt() throws JSONException {
+		long value = nextLong();
+		if (value != (int) value) throw error("number out of range");
+		return (int) value;
+	}
+
+	public boolean nextBoolean() throws JSONException {
+		String value = nextString();
+		if ("true".equals(value)) return true;
+		if ("false".equals(value)) return false;
+		throw error("expected a boolean");
+	}
+
+	/**
+	 * The method skips the next value, including nested objects and arrays.
+	 * @throws JSONException
+	 */
+	public void skipValue() throws JSONException {
+		switch (peek()) {
+		case OBJECT:
+			beginObject();
+			while (hasNext()) {
+				nextName();
+				skipValue();
+			}
+			endObject();
+			break;
+		case ARRAY:
+			beginArray();
+			while (hasNext()) {
+				skipValue();
+			}
+			endArray();
+			break;
+		case STRING:
+			readString();
+			break;
+		default:
+			readLiteral();
+		}
+	}
+
+	private void expect(char expected) throws JSONException {
+		if (peekChar() != expected) throw error("expected '" + expected + "'");
+		position++;
+	}
+
+	/**
+	 * The method skips white space and returns the next character without consuming it.
+	 */
+	private char peekChar() throws JSONException {
+		while (position < json.length()) {
+			char c = json.charAt(position);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') return c;
+			position++;
+		}
+		throw error("unexpected end");
+	}
+
+	/**
+	 * The method reads a quoted string. Strings without escapes are taken from the json as they are.
+	 */
+	private String readString() throws JSONException {
+		int start = ++position;
+		StringBuilder builder = null;
+		while (position < json.length()) {
+			char c = json.charAt(position);
+			if (c == '"') {
+				String value = builder == null ? json.substring(start, position) : builder.append(json, start, position).toString();
+				position++;
+				return value;
+			}
+			if (c != '\\') {
+				position++;
+				continue;
+			}
+			if (builder == null) {
+				builder = new StringBuilder();
+			}
+			builder.append(json, start, position);
+			if (++position >= json.length()) break;
+			char escaped = json.charAt(position++);
+			switch (escaped) {
+			case 'b':
+				builder.append('\b');
+				break;
+			case 'f':
+				builder.append('\f');
+				break;
+			case 'n':
+				builder.append('\n');
+				break;
+			case 'r':
+				builder.append('\r');
+				break;
+			case 't':
+				builder.append('\t');
+				break;
+			case '0':
+				// written by wink-json4j for "\0"
+				builder.append('\0');
+				break;
+			case 'u':
+				if (position + 4 > json.length()) throw error("invalid escape");
+				try {
+					builder.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+				} catch (NumberFormatException e) {
+					throw error("invalid escape");
+				}
+				position += 4;
+				break;
+			default:
+				builder.append(escaped);
+			}
+			start = position;
+		}
+		throw error("unterminated string");
+	}
+
+	/**
+	 * The method reads a number, true, false or null.
+	 */
+	private String readLiteral() throws JSONException {
+		int start = position;
+		while (position < json.length()) {
+			char c = json.charAt(position);
+			if (c == ',' || c == '}' || c == ']' || c == ':' || c == ' ' || c == '\t' || c == '\n' || c == '\r') break;
+			position++;
+		}
+		if (start == position) throw error("expected a value");
+		return json.substring(start, position);
+	}
+
+	private JSONException error(String message) {
+		return new JSONException(message + " at " + position);
+	}
+}
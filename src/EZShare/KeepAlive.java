@@ -0,0 +1,103 @@
+/**
+ * This class describes the optional persistent connection mode. A client that sends the HELLO
+ * command with keepAlive first can send any number of commands over the same connection, each
+ * with a requestId. Commands may be pipelined and are answered in order, and every response
+ * ends with an end-of-response message carrying the requestId, so neither side has to wait for
+ * the socket to close or time out. The handshake also negotiates the framing of the connection,
+ * on framed connections the requestId and the end of a response are part of the frames instead.
+ * A server that keeps a thread busy for each persistent connection says so in its response,
+ * so other servers don't keep idle connections to it.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+package EZShare;
+
+public class KeepAlive {
+	public static final String HANDSHAKE = "{\"command\":\"HELLO\",\"keepAlive\":true,\"framing\":" + Frame.VERSION + "}";
+	private static final String HANDSHAKE_RESPONSE = "{\"response\":\"success\",\"keepAlive\":true";
+	private static final String END_OF_RESPONSE = "{\"endOfResponse\":true";
+	private static final String THREAD_PER_CONNECTION = "\"threadPerConnection\":true";
+
+	/**
+	 * The method checks whether the command asks for a persistent connection.
+	 * @param command a json string
+	 * @return true if the command is the keep-alive handshake
+	 */
+	public static boolean isHandshake(String command) {
+		if (!command.contains("HELLO")) return false;
+		return "HELLO".equals(JsonReader.field(command, "command")) && "true".equals(JsonReader.field(command, "keepAlive"));
+	}
+
+	/**
+	 * The method builds the response to the handshake.
+	 * @param framing the framing version to use from now on, or 0 for writeUTF messages
+	 * @param threadPerConnection whether the connection holds a thread of the server while it is open
+	 * @return the response as a json string
+	 */
+	public static String handshakeResponse(int framing, boolean threadPerConnection) {
+		StringBuilder builder = new StringBuilder(HANDSHAKE_RESPONSE);
+		if (framing > 0) builder.append(",\"framing\":").append(framing);
+		if (threadPerConnection) builder.append(',').append(THREAD_PER_CONNECTION);
+		return builder.append('}').toString();
+	}
+
+	/**
+	 * @param message the response to the handshake
+	 * @return true if the connection holds a thread of the server while it is open
+	 */
+	public static boolean isThreadPerConnection(String message) {
+		return message.contains(THREAD_PER_CONNECTION);
+	}
+
+	/**
+	 * The method checks whether a message accepts the handshake.
+	 * @param message a json string
+	 * @return true if the server keeps the connection open
+	 */
+	public static boolean isHandshakeResponse(String message) {
+		return message.startsWith(HANDSHAKE_RESPONSE);
+	}
+
+	/**
+	 * The method reads the request id of a command.
+	 * @param command a json string
+	 * @return the request id, or 0 if the command has none
+	 */
+	public static long requestId(String command) {
+		if (!command.contains("\"requestId\"")) return 0;
+		try {
+			return Long.parseLong(JsonReader.field(command, "requestId"));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * The method adds a request id to a command.
+	 * @param command a json string
+	 * @param requestId
+	 * @return the command with the request id
+	 */
+	public static String withRequestId(String command, long requestId) {
+		if (!command.startsWith("{")) return command;
+		return "{\"requestId\":" + requestId + (command.startsWith("{}") ? "" : ",") + command.substring(1);
+	}
+
+	/**
+	 * The method builds the message that ends the response to a command.
+	 * @param requestId
+	 * @return the message as a json string
+	 */
+	public static String endOfResponse(long requestId) {
+		return END_OF_RESPONSE + ",\"requestId\":" + requestId + "}";
+	}
+
+	/**
+	 * The method checks whether a message ends a response.
+	 * @param message a json string
+	 * @return true if it is an end-of-response message
+	 */
+	public static boolean isEndOfResponse(String message) {
+		return message.startsWith(END_OF_RESPONSE);
+	}
+}
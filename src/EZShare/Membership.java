@@ -0,0 +1,453 @@
+/**
+ * This class keeps the versioned membership of the servers this server knows, and keeps the
+ * table of servers in step with it. Each server is an entry named hostname:port with an incarnation
+ * and whether it is alive. A server's own entry starts at its start time, and only the server
+ * raises it, to refute reports that it is dead. A higher incarnation wins and at the same
+ * incarnation a dead entry wins, so a server found dead stays dead until it says otherwise.
+ * Dead entries are kept as tombstones for a while, so the removal spreads instead of the server
+ * being added back by a server that hasn't heard yet.
+ * Exchanges send only a hash of the membership first. If the hashes differ the other server
+ * answers with its digest, the version of every entry, and the two servers then send each other
+ * just the entries that are missing or older on the other side.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.apache.wink.json4j.JSONException;
+
+public class Membership {
+	private static Logger logger = Logger.getLogger(Membership.class);
+
+	private ServerTable servers;
+	private ServerBean myServer;
+	private Map<String, Entry> entries;
+	// the hashes of all entries combined, kept up to date as entries change
+	private long hash;
+	// servers known to take part in membership exchanges, the others are sent the whole server list
+	private Set<String> capableServers;
+
+	/**
+	 * @param servers the table of servers to keep in step
+	 * @param myServer
+	 */
+	public Membership(ServerTable servers, ServerBean myServer) {
+		this.servers = servers;
+		this.myServer = myServer;
+		entries = new HashMap<>();
+		capableServers = ConcurrentHashMap.newKeySet();
+		put(new Entry(myServer.getHostname(), myServer.getPort(), System.currentTimeMillis(), false, myServer));
+	}
+
+	/**
+	 * @return the hash of the membership, the same on two servers that have the same entries
+	 */
+	public synchronized String hash() {
+		expireTombstones();
+		return Long.toHexString(hash);
+	}
+
+	/**
+	 * The method answers the membership part of an exchange: the entries the other server wants,
+	 * or the hash of the membership, with the digest if the hash of the other server differs.
+	 * Entries the other server sent have to be merged first.
+	 * @param update
+	 * @return the answer as a json object
+	 */
+	public synchronized String respond(Update update) {
+		StringBuilder builder = new StringBuilder("{");
+		if (update.want != null) {
+			builder.append("\"entries\":").append(entries(update.want));
+		} else if (update.hash != null) {
+			String hash = hash();
+			builder.append("\"hash\":");
+			ResourceCodec.writeString(builder, hash);
+			if (!hash.equals(update.hash)) {
+				builder.append(",\"digest\":").append(digest());
+			}
+		}
+		return builder.append('}').toString();
+	}
+
+	/**
+	 * The method builds the second step of an exchange, after the other server answered with its
+	 * digest: the entries it lacks and the names of the entries it has newer versions of.
+	 * @param digest the versions of the other server
+	 * @return the membership part of the exchange as a json object
+	 */
+	public synchronized String reconcile(Map<String, Long> digest) {
+		return "{\"entries\":" + newerEntries(digest) + ",\"want\":" + wantedEntries(digest) + "}";
+	}
+
+	/**
+	 * @return the version of every entry as a json object
+	 */
+	private String digest() {
+		StringBuilder builder = new StringBuilder("{");
+		for (Entry entry : entries.values()) {
+			if (builder.length() > 1) builder.append(',');
+			ResourceCodec.writeString(builder, entry.name);
+			builder.append(':').append(entry.version());
+		}
+		return builder.append('}').toString();
+	}
+
+	/**
+	 * The method builds the entries the digest of another server lacks or has older versions of.
+	 * @param digest the versions of the other server
+	 * @return the entries as a json array
+	 */
+	private String newerEntries(Map<String, Long> digest) {
+		List<Entry> newer = new ArrayList<>();
+		for (Entry entry : entries.values()) {
+			Long version = digest.get(entry.name);
+			if (version == null || version < entry.version()) {
+				newer.add(entry);
+			}
+		}
+		return toJson(newer);
+	}
+
+	/**
+	 * The method lists the entries the digest of another server has newer versions of.
+	 * @param digest the versions of the other server
+	 * @return the names of the entries as a json array
+	 */
+	private String wantedEntries(Map<String, Long> digest) {
+		StringBuilder builder = new StringBuilder("[");
+		for (Map.Entry<String, Long> version : digest.entrySet()) {
+			Entry entry = entries.get(version.getKey());
+			if (entry == null || entry.version() < version.getValue()) {
+				if (builder.length() > 1) builder.append(',');
+				ResourceCodec.writeString(builder, version.getKey());
+			}
+		}
+		return builder.append(']').toString();
+	}
+
+	/**
+	 * @param names
+	 * @return the entries with the names as a json array
+	 */
+	private String entries(List<String> names) {
+		List<Entry> found = new ArrayList<>();
+		for (String name : names) {
+			Entry entry = entries.get(name);
+			if (entry != null) {
+				found.add(entry);
+			}
+		}
+		return toJson(found);
+	}
+
+	private static String toJson(List<Entry> entries) {
+		StringBuilder builder = new StringBuilder("[");
+		for (Entry entry : entries) {
+			if (builder.length() > 1) builder.append(',');
+			builder.append("{\"hostname\":");
+			ResourceCodec.writeString(builder, entry.hostname);
+			builder.append(",\"port\":").append(entry.port).append(",\"incarnation\":").append(entry.incarnation)
+					.append(",\"dead\":").append(entry.dead).append('}');
+		}
+		return builder.append(']').toString();
+	}
+
+	/**
+	 * The method merges entries sent by another server. Only newer versions are taken.
+	 * @param updates
+	 * @return the servers which were found dead
+	 */
+	public synchronized List<ServerBean> merge(List<Entry> updates) {
+		List<ServerBean> died = new ArrayList<>();
+		for (Entry update : updates) {
+			Entry entry = entries.get(update.name);
+			if (update.name.equals(myServer.toString())) {
+				// someone thinks this server is dead, so it comes back with a higher incarnation
+				if (update.dead && update.incarnation >= entry.incarnation) {
+					put(new Entry(entry.hostname, entry.port, update.incarnation + 1, false, myServer));
+					logger.debug("refuted the death of this server");
+				}
+				continue;
+			}
+			if (entry != null && entry.version() >= update.version()) continue;
+			if (entry != null) {
+				update.serverBean = entry.serverBean;
+			}
+			put(update);
+			if (update.dead && entry != null && !entry.dead) {
+				died.add(entry.serverBean);
+			}
+		}
+		return died;
+	}
+
+	/**
+	 * The method merges a server list sent by a server that doesn't take part in membership
+	 * exchanges. Servers which are not known yet are added as alive.
+	 * @param servers
+	 */
+	public synchronized void mergeServerList(List<ServerBean> servers) {
+		for (ServerBean serverBean : servers) {
+			if (entries.containsKey(serverBean.toString())) continue;
+			put(new Entry(serverBean.getHostname(), serverBean.getPort(), 0, false, serverBean));
+		}
+	}
+
+	/**
+	 * The method records that a server was found dead, under every name it is known by.
+	 * @param serverBean
+	 */
+	public synchronized void markDead(ServerBean serverBean) {
+		if (serverBean.equals(myServer)) return;
+		for (Entry entry : new ArrayList<>(entries.values())) {
+			if (!entry.dead && sameServer(entry.serverBean, serverBean)) {
+				put(new Entry(entry.hostname, entry.port, entry.incarnation, true, entry.serverBean));
+			}
+		}
+	}
+
+	private static boolean sameServer(ServerBean a, ServerBean b) {
+		return a.isResolvable() && b.isResolvable() && a.equals(b);
+	}
+
+	/**
+	 * The method describes the membership for the STATS command.
+	 * @return the statistics as a json string
+	 */
+	public synchronized String statistics() {
+		int dead = 0;
+		for (Entry entry : entries.values()) {
+			if (entry.dead) dead++;
+		}
+		return "{\"entries\":" + entries.size() + ",\"tombstones\":" + dead + ",\"hash\":\"" + Long.toHexString(hash) + "\"}";
+	}
+
+	public boolean isCapable(ServerBean serverBean) {
+		return capableServers.contains(serverBean.getKey());
+	}
+
+	public void setCapable(ServerBean serverBean) {
+		capableServers.add(serverBean.getKey());
+	}
+
+	/**
+	 * The method replaces an entry, updates the hash and adds the server to or removes it from
+	 * the table of servers.
+	 */
+	private void put(Entry entry) {
+		Entry previous = entries.put(entry.name, entry);
+		if (previous != null) {
+			hash ^= previous.hash();
+		}
+		hash ^= entry.hash();
+		if (entry.serverBean == null) {
+			entry.serverBean = new ServerBean(entry.hostname, entry.port);
+		}
+		// another name of this server, or a server that can't be resolved, stays out of the server list
+		if (!entry.serverBean.isResolvable() || entry.serverBean.equals(myServer)) return;
+		if (entry.dead) {
+			// the server may still be alive under another name
+			for (Entry other : entries.values()) {
+				if (!other.dead && sameServer(other.serverBean, entry.serverBean)) return;
+			}
+			servers.remove(entry.serverBean);
+		} else {
+			servers.add(entry.serverBean);
+		}
+	}
+
+	/**
+	 * The method drops the tombstones that have been kept long enough to have spread.
+	 */
+	private void expireTombstones() {
+		long expiry = System.currentTimeMillis() - tombstoneLifetime();
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if (entry.dead && entry.updated < expiry) {
+				hash ^= entry.hash();
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Tombstones are kept for ten exchange intervals, which is long enough for the removal to
+	 * reach the other servers unless the mesh is very large.
+	 */
+	private static long tombstoneLifetime() {
+		return ServerInfo.exchangeInterval * 10 * 1000L;
+	}
+
+	/**
+	 * The method reads the membership part of an exchange or its response.
+	 * @param reader positioned at the membership object
+	 * @return the message
+	 * @throws JSONException if the json is malformed
+	 */
+	public static Update read(JsonReader reader) throws JSONException {
+		Update update = new Update();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "hash":
+				update.hash = reader.nextString();
+				break;
+			case "digest":
+				update.digest = new HashMap<>();
+				reader.beginObject();
+				while (reader.hasNext()) {
+					String name = reader.nextName();
+					update.digest.put(name, reader.nextLong());
+				}
+				reader.endObject();
+				break;
+			case "entries":
+				update.entries = new ArrayList<>();
+				reader.beginArray();
+				while (reader.hasNext()) {
+					Entry entry = readEntry(reader);
+					if (entry != null) update.entries.add(entry);
+				}
+				reader.endArray();
+				break;
+			case "want":
+				update.want = new ArrayList<>();
+				reader.beginArray();
+				while (reader.hasNext()) {
+					update.want.add(reader.nextString());
+				}
+				reader.endArray();
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		return update;
+	}
+
+	/**
+	 * The method reads the membership part of the response to an exchange.
+	 * @param response a json string
+	 * @return the message, or null if the response has none
+	 */
+	public static Update readResponse(String response) {
+		try {
+			JsonReader reader = new JsonReader(response);
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (reader.nextName().equals("membership")) return read(reader);
+				reader.skipValue();
+			}
+		} catch (JSONException e) {
+			logger.error("invalid membership: " + e.getMessage());
+		}
+		return null;
+	}
+
+	private static Entry readEntry(JsonReader reader) throws JSONException {
+		String hostname = null;
+		Integer port = null;
+		long incarnation = 0;
+		boolean dead = false;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "hostname":
+				hostname = reader.nextString();
+				break;
+			case "port":
+				port = reader.nextInt();
+				break;
+			case "incarnation":
+				incarnation = reader.nextLong();
+				break;
+			case "dead":
+				dead = reader.nextBoolean();
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (hostname == null || port == null) return null;
+		return new Entry(hostname, port, incarnation, dead, null);
+	}
+
+	/**
+	 * The membership part of an exchange: the hash, the digest, entries or the names of wanted
+	 * entries, whichever the step of the exchange needs.
+	 */
+	public static class Update {
+		private String hash;
+		private Map<String, Long> digest;
+		private List<Entry> entries;
+		private List<String> want;
+
+		public String getHash() {
+			return hash;
+		}
+
+		public Map<String, Long> getDigest() {
+			return digest;
+		}
+
+		public List<Entry> getEntries() {
+			return entries;
+		}
+
+		public List<String> getWant() {
+			return want;
+		}
+	}
+
+	/**
+	 * The version of a server in the membership. The server is only resolved when the entry is
+	 * first stored.
+	 */
+	public static class Entry {
+		private String name;
+		private String hostname;
+		private int port;
+		private long incarnation;
+		private boolean dead;
+		private long updated;
+		private ServerBean serverBean;
+
+		private Entry(String hostname, int port, long incarnation, boolean dead, ServerBean serverBean) {
+			this.name = hostname + ":" + port;
+			this.hostname = hostname;
+			this.port = port;
+			this.incarnation = incarnation;
+			this.dead = dead;
+			this.updated = System.currentTimeMillis();
+			this.serverBean = serverBean;
+		}
+
+		/**
+		 * @return the incarnation and whether the server is dead in one number that orders versions
+		 */
+		private long version() {
+			return incarnation * 2 + (dead ? 1 : 0);
+		}
+
+		private long hash() {
+			long h = name.hashCode() * 0x9e3779b97f4a7c15L + version();
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			return h;
+		}
+	}
+}
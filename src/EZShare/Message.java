@@ -12,7 +12,10 @@ public class Message {
 	private MessageType type;
 	private String message;
 	private byte[] bytes;
+	private byte[] encoded; // the message in UTF-8, if it was encoded ahead of time
 	private File file;
+	private long offset;
+	private long length = -1; // -1 means up to the end of the file
 	
 	public Message(MessageType type, String message, byte[] bytes, File file){
 		this.type = type;
@@ -26,6 +29,17 @@ public class Message {
 		this.message = message;
 	}
 
+	/**
+	 * The constructor is for messages which are sent many times, so they are encoded only once.
+	 * @param message a json string in ASCII, so UTF-8 and writeUTF encode it the same way
+	 * @param encoded the message in UTF-8
+	 */
+	public Message(String message, byte[] encoded){
+		this.type = MessageType.STRING;
+		this.message = message;
+		this.encoded = encoded;
+	}
+
 	public File getFile() {
 		return file;
 	}
@@ -33,6 +47,22 @@ public class Message {
 	public void setFile(File file) {
 		this.file = file;
 	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	public long getLength() {
+		return length < 0 ? file.length() - offset : length;
+	}
+
+	public void setLength(long length) {
+		this.length = length;
+	}
  
 
 	public MessageType getType() {
@@ -49,6 +79,14 @@ public class Message {
 
 	public void setMessage(String message) {
 		this.message = message;
+		this.encoded = null;
+	}
+
+	/**
+	 * @return the message in UTF-8, or null if it wasn't encoded ahead of time
+	 */
+	public byte[] getEncoded() {
+		return encoded;
 	}
 
 	public byte[] getBytes() {
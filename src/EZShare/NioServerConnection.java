@@ -0,0 +1,512 @@
+/**
+ * This class is a non-blocking front end for the server. A single selector thread accepts
+ * sockets, reads the command frame and writes the responses, while the commands themselves are
+ * processed by the thread pool. Idle or slow clients only cost a registered channel, not a thread.
+ * Connections are cheap here, so admission control counts the commands passed to the pool instead,
+ * and a command that is turned away is answered by the selector thread that the server is busy.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+public class NioServerConnection extends ServerConnection {
+	private static Logger logger = Logger.getLogger(NioServerConnection.class);
+	// idle connections only hold a small buffer, which grows while a larger frame is being read
+	private static final int INITIAL_BUFFER_SIZE = 512;
+
+	private Selector selector;
+	// tasks handed over by worker threads that must run on the selector thread
+	private Queue<Runnable> selectorTasks;
+
+	public NioServerConnection() {
+		super();
+		selectorTasks = new ConcurrentLinkedQueue<>();
+	}
+
+	/**
+	 * The method opens a non-blocking server socket and runs the selector loop. Connections that
+	 * violate the connection interval are closed on accept, and connections that stay idle longer
+	 * than the timeout are closed by a periodic sweep.
+	 * @param serverBean
+	 */
+	@Override
+	public void handleConnection(ServerBean serverBean) {
+		try {
+			selector = Selector.open();
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(serverBean.getPort()));
+			serverChannel.configureBlocking(false);
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+			long lastSweep = System.currentTimeMillis();
+			while (true) {
+				selector.select(1000);
+				Runnable task;
+				while ((task = selectorTasks.poll()) != null) {
+					task.run();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid()) continue;
+						if (key.isAcceptable()) {
+							accept(serverChannel);
+						} else if (key.isReadable()) {
+							read(key);
+						} else if (key.isWritable()) {
+							write(key);
+						}
+					} catch (IOException e) {
+						close(key);
+					}
+				}
+				if (System.currentTimeMillis() - lastSweep >= 1000) {
+					sweepIdleConnections();
+					lastSweep = System.currentTimeMillis();
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The method accepts all pending sockets and registers them for reading.
+	 * @param serverChannel
+	 * @throws IOException
+	 */
+	private void accept(ServerSocketChannel serverChannel) throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			String ipAddress = channel.socket().getInetAddress().getHostAddress();
+			logger.debug("connected to: " + ipAddress + ":" + channel.socket().getPort());
+			if (!checkConnectionInterval(ipAddress)) {
+				channel.close();
+				logger.debug("Client: " + ipAddress + " violates the connection interval");
+				continue;
+			}
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, new NioConnection(channel));
+		}
+	}
+
+	/**
+	 * The method reads from the channel until a whole command frame has arrived and then
+	 * passes the command to the thread pool.
+	 * @param key
+	 * @throws IOException
+	 */
+	private void read(SelectionKey key) throws IOException {
+		NioConnection connection = (NioConnection) key.attachment();
+		if (connection.channel.read(connection.readBuffer) == -1) {
+			close(key);
+			return;
+		}
+		connection.lastActive = System.currentTimeMillis();
+		dispatchNext(key);
+	}
+
+	/**
+	 * The method takes the next command frame from the read buffer. The keep-alive handshake
+	 * is answered directly, other commands are passed to the thread pool. Reading stops until
+	 * the response has been written, pipelined commands wait in the read buffer meanwhile.
+	 * @param key
+	 * @throws IOException
+	 */
+	private void dispatchNext(SelectionKey key) throws IOException {
+		NioConnection connection = (NioConnection) key.attachment();
+		String command = connection.nextCommand();
+		if (command == null) {
+			key.interestOps(SelectionKey.OP_READ);
+			return;
+		}
+		logger.debug("RECEIVED: " + command);
+		if (connection.commands++ == 0) {
+			int framing = Frame.negotiate(command);
+			if (KeepAlive.isHandshake(command)) {
+				connection.keepAlive = true;
+				enqueue(connection, new Message(KeepAlive.handshakeResponse(framing, false)), 0);
+				connection.framing = framing;
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			if (framing > 0) {
+				enqueue(connection, new Message(Frame.acknowledgement(framing)), 0);
+				connection.framing = framing;
+			}
+		}
+		int requestId = connection.requestId;
+		AdmissionControl admission = ServerCore.getInstance().getAdmissionControl();
+		if (!admission.admit()) {
+			rejectBusy(key, command, requestId, admission);
+			return;
+		}
+		key.interestOps(0);
+		connection.processing = true;
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						ServerCommandProcessor.getInstance().processCommand(command, connection.channel.socket().getInetAddress(),
+								message -> send(key, message, requestId));
+						endResponse(key, command, requestId);
+					} finally {
+						admission.done();
+						connection.processing = false;
+						scheduleWrite(key);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			admission.rejected();
+			connection.processing = false;
+			rejectBusy(key, command, requestId, admission);
+		}
+	}
+
+	/**
+	 * The method answers a command that is turned away that the server is busy.
+	 * @param key
+	 * @param command
+	 * @param requestId
+	 * @param admission
+	 * @throws IOException
+	 */
+	private void rejectBusy(SelectionKey key, String command, int requestId, AdmissionControl admission) throws IOException {
+		NioConnection connection = (NioConnection) key.attachment();
+		logger.debug("Client: " + connection.channel.socket().getInetAddress().getHostAddress() + " turned away, server busy");
+		enqueue(connection, new Message(admission.busyMessage(getConcurrency())), requestId);
+		endResponse(key, command, requestId);
+		key.interestOps(SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * The method ends the response to a command, with an END frame on framed connections and an
+	 * end-of-response message on other persistent connections.
+	 * @param key
+	 * @param command the command that has been answered
+	 * @param requestId
+	 */
+	private void endResponse(SelectionKey key, String command, int requestId) {
+		NioConnection connection = (NioConnection) key.attachment();
+		if (connection.framing > 0) {
+			connection.outbound.add(Frame.header(Frame.END, requestId, 0));
+		} else if (connection.keepAlive) {
+			send(key, new Message(KeepAlive.endOfResponse(KeepAlive.requestId(command))), requestId);
+		}
+	}
+
+	/**
+	 * The method queues a message of a response and has the selector thread write it.
+	 * @param key
+	 * @param message
+	 * @param requestId the request the message answers on a framed connection
+	 */
+	private void send(SelectionKey key, Message message, int requestId) {
+		NioConnection connection = (NioConnection) key.attachment();
+		try {
+			enqueue(connection, message, requestId);
+		} catch (IOException e) {
+			logger.error("Cannot send message: " + e.getMessage());
+		}
+		scheduleWrite(key);
+	}
+
+	/**
+	 * The method asks the selector thread to write the pending responses of the connection.
+	 * Requests are coalesced until the selector thread has handled the previous one.
+	 * @param key
+	 */
+	private void scheduleWrite(SelectionKey key) {
+		NioConnection connection = (NioConnection) key.attachment();
+		if (!connection.writeScheduled.compareAndSet(false, true)) return;
+		selectorTasks.add(new Runnable() {
+			public void run() {
+				connection.writeScheduled.set(false);
+				if (key.isValid()) {
+					key.interestOps(SelectionKey.OP_WRITE);
+				}
+			}
+		});
+		selector.wakeup();
+	}
+
+	/**
+	 * The method writes as much of the pending responses as the channel accepts. Once the
+	 * command has been processed and all responses are written the connection is closed, or
+	 * on a persistent connection the next command is read.
+	 * @param key
+	 * @throws IOException
+	 */
+	private void write(SelectionKey key) throws IOException {
+		NioConnection connection = (NioConnection) key.attachment();
+		// read before the queue is drained, the worker queues its last messages before it finishes
+		boolean processing = connection.processing;
+		Object item;
+		while ((item = connection.outbound.peek()) != null) {
+			if (item instanceof ByteBuffer) {
+				ByteBuffer buffer = (ByteBuffer) item;
+				if (connection.channel.write(buffer) > 0) {
+					// a slow client is not idle as long as it takes some of the response
+					connection.lastActive = System.currentTimeMillis();
+				}
+				if (buffer.hasRemaining()) return;
+			} else {
+				FileSegment segment = (FileSegment) item;
+				long sent = segment.file.transferTo(segment.position, segment.remaining, connection.channel);
+				if (sent > 0) {
+					connection.lastActive = System.currentTimeMillis();
+				}
+				segment.position += sent;
+				segment.remaining -= sent;
+				if (segment.remaining > 0) {
+					if (sent == 0) return;
+					continue;
+				}
+				if (segment.last) {
+					segment.file.close();
+				}
+			}
+			connection.lastActive = System.currentTimeMillis();
+			connection.outbound.poll();
+		}
+		if (!connection.outbound.isEmpty()) {
+			// messages queued while the queue was drained
+			key.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+		if (processing) {
+			// wait for the rest of the response, the worker schedules a write when it has finished
+			key.interestOps(0);
+			return;
+		}
+		if (connection.keepAlive) {
+			dispatchNext(key);
+			return;
+		}
+		close(key);
+	}
+
+	/**
+	 * The method closes connections which have neither been read from nor written to
+	 * within the timeout, where any progress of a partial write counts. Connections whose
+	 * command is still being processed are kept.
+	 */
+	private void sweepIdleConnections() {
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : selector.keys()) {
+			if (!(key.attachment() instanceof NioConnection)) continue;
+			NioConnection connection = (NioConnection) key.attachment();
+			if (!connection.processing && now - connection.lastActive > ServerInfo.timeout * 1000) {
+				logger.debug("Lost connection: " + connection.channel.socket().getInetAddress().getHostAddress());
+				close(key);
+			}
+		}
+	}
+
+	/**
+	 * The method closes the channel of the key and any file that is still being sent.
+	 * @param key
+	 */
+	private void close(SelectionKey key) {
+		key.cancel();
+		if (!(key.attachment() instanceof NioConnection)) return;
+		NioConnection connection = (NioConnection) key.attachment();
+		try {
+			logger.debug("Close connection: " + connection.channel.socket().getInetAddress().getHostAddress());
+			connection.channel.close();
+		} catch (IOException e) {
+			logger.error(e.getMessage());
+		}
+		Object item;
+		while ((item = connection.outbound.poll()) != null) {
+			if (item instanceof FileSegment) {
+				try {
+					((FileSegment) item).file.close();
+				} catch (IOException e) {
+					logger.error(e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * The method converts a message into items of the outbound queue, in the framing of the connection.
+	 * @param connection
+	 * @param message
+	 * @param requestId the request the message answers on a framed connection
+	 * @throws IOException
+	 */
+	private static void enqueue(NioConnection connection, Message message, int requestId) throws IOException {
+		if (message.getType() == MessageType.FILE) {
+			FileChannel file = new FileInputStream(message.getFile()).getChannel();
+			if (connection.framing == 0) {
+				connection.outbound.add(new FileSegment(file, message.getOffset(), message.getLength(), true));
+				return;
+			}
+			long position = message.getOffset();
+			long remaining = message.getLength();
+			if (remaining == 0) {
+				file.close();
+			}
+			while (remaining > 0) {
+				int length = (int) Math.min(remaining, Frame.MAX_DATA_LENGTH);
+				connection.outbound.add(Frame.header(Frame.DATA, requestId, length));
+				connection.outbound.add(new FileSegment(file, position, length, remaining == length));
+				position += length;
+				remaining -= length;
+			}
+		} else if (message.getType() == MessageType.BYTES) {
+			if (connection.framing > 0) {
+				connection.outbound.add(Frame.header(Frame.DATA, requestId, message.getBytes().length));
+			}
+			connection.outbound.add(ByteBuffer.wrap(message.getBytes()));
+		} else {
+			logger.debug("SENT: " + message.getMessage());
+			byte[] encoded = message.getEncoded();
+			if (connection.framing > 0) {
+				if (encoded == null) {
+					connection.outbound.add(Frame.encode(requestId, message.getMessage()));
+				} else {
+					// the encoded bytes are shared by every connection, so they are wrapped rather than copied
+					connection.outbound.add(Frame.header(Frame.JSON, requestId, encoded.length));
+					connection.outbound.add(ByteBuffer.wrap(encoded));
+				}
+				return;
+			}
+			if (encoded != null && encoded.length <= Frame.MAX_UTF_LENGTH) {
+				ByteBuffer length = ByteBuffer.allocate(2);
+				length.putShort((short) encoded.length).flip();
+				connection.outbound.add(length);
+				connection.outbound.add(ByteBuffer.wrap(encoded));
+				return;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream outputStream = new DataOutputStream(bytes);
+			outputStream.writeUTF(message.getMessage());
+			connection.outbound.add(ByteBuffer.wrap(bytes.toByteArray()));
+		}
+	}
+
+	/**
+	 * The state of a single client connection.
+	 */
+	private static class NioConnection {
+		private SocketChannel channel;
+		private ByteBuffer readBuffer;
+		private Queue<Object> outbound;
+		private volatile boolean processing;
+		private boolean keepAlive;
+		private int commands;
+		// the framing version of the connection, 0 for writeUTF messages
+		private volatile int framing;
+		private int requestId;
+		private AtomicBoolean writeScheduled;
+		private long lastActive;
+
+		private NioConnection(SocketChannel channel) {
+			this.channel = channel;
+			this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+			this.outbound = new ConcurrentLinkedQueue<>();
+			this.writeScheduled = new AtomicBoolean();
+			this.lastActive = System.currentTimeMillis();
+		}
+
+		/**
+		 * The method takes the next command from the read buffer. The buffer grows as the frame
+		 * arrives, doubling whenever it is full up to the length of the frame, so a frame that is
+		 * announced but not sent doesn't take up memory. Once a large frame has been read the
+		 * buffer goes back to its initial size.
+		 * @return the command or null if the frame is incomplete
+		 * @throws IOException if the frame is malformed or longer than a command can be
+		 */
+		private String nextCommand() throws IOException {
+			int frameSize = frameSize();
+			if (frameSize < 0) return null;
+			// a connection that announces a longer command than the blocking server takes is closed
+			int length = frameSize - (framing > 0 ? Frame.HEADER_SIZE : 2);
+			if (length > Frame.MAX_COMMAND_LENGTH)
+				throw new ProtocolException("command frame of " + length + " bytes is too long");
+			if (readBuffer.position() < frameSize) {
+				if (!readBuffer.hasRemaining()) {
+					resize(Math.min(frameSize, readBuffer.capacity() * 2));
+				}
+				return null;
+			}
+			String command;
+			if (framing > 0) {
+				Frame frame = Frame.decode(readBuffer);
+				requestId = frame.getRequestId();
+				command = frame.getMessage();
+			} else {
+				DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(readBuffer.array(), 0, frameSize));
+				command = inputStream.readUTF();
+			}
+			readBuffer.flip();
+			readBuffer.position(frameSize);
+			readBuffer.compact();
+			if (readBuffer.capacity() > INITIAL_BUFFER_SIZE && readBuffer.position() <= INITIAL_BUFFER_SIZE) {
+				resize(INITIAL_BUFFER_SIZE);
+			}
+			return command;
+		}
+
+		private void resize(int capacity) {
+			ByteBuffer buffer = ByteBuffer.allocate(capacity);
+			readBuffer.flip();
+			buffer.put(readBuffer);
+			readBuffer = buffer;
+		}
+
+		/**
+		 * @return the size of the frame at the start of the read buffer, or -1 if it isn't known yet
+		 */
+		private int frameSize() throws IOException {
+			if (framing > 0) return Frame.frameSize(readBuffer);
+			if (readBuffer.position() < 2) return -1;
+			return 2 + (((readBuffer.get(0) & 0xff) << 8) | (readBuffer.get(1) & 0xff));
+		}
+	}
+
+	/**
+	 * The part of a file that is still to be sent.
+	 */
+	private static class FileSegment {
+		private FileChannel file;
+		private long position;
+		private long remaining;
+		// whether the file is closed once the segment is sent
+		private boolean last;
+
+		private FileSegment(FileChannel file, long position, long remaining, boolean last) {
+			this.file = file;
+			this.position = position;
+			this.remaining = remaining;
+			this.last = last;
+		}
+	}
+}
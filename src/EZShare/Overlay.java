@@ -0,0 +1,234 @@
+/**
+ * This class keeps a partial view of the servers, for meshes too large for every server to know
+ * every other, after HyParView. The active view is the few servers this server exchanges with
+ * and relays queries to, kept in the table of servers. The passive view is a larger set of
+ * servers held in reserve, which replace active servers that fail. Each exchange shuffles the
+ * views: both servers send a sample of the servers they know, and keep the servers they didn't
+ * know in their passive view, so the views keep mixing. A server that exchanges with this one
+ * joins the active view if there is room.
+ * Relayed queries spread along the active views for a limited number of hops, and each server
+ * only answers the first copy of a query that reaches it, so the work per server stays bounded
+ * as the mesh grows.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.apache.wink.json4j.JSONException;
+
+public class Overlay {
+	// the servers of each view sent in a shuffle
+	private static final int SHUFFLE_ACTIVE = 3;
+	private static final int SHUFFLE_PASSIVE = 4;
+	// the ids of queries seen recently, to answer each query once
+	private static final int MAX_SEEN_QUERIES = 4096;
+
+	private ServerTable servers;
+	private ServerBean myServer;
+	private Map<String, ServerBean> passive;
+	private LinkedHashMap<String, Boolean> seenQueries;
+	private AtomicLong duplicates = new AtomicLong();
+	private Random random;
+
+	/**
+	 * @param servers the table of servers, which holds the active view
+	 * @param myServer
+	 */
+	public Overlay(ServerTable servers, ServerBean myServer) {
+		this.servers = servers;
+		this.myServer = myServer;
+		passive = new LinkedHashMap<>();
+		seenQueries = new LinkedHashMap<String, Boolean>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > MAX_SEEN_QUERIES;
+			}
+		};
+		random = new Random();
+	}
+
+	/**
+	 * The method adds servers this server was told about, e.g. by a client, to the active view
+	 * while it has room and to the passive view after that.
+	 * @param serverBeans
+	 */
+	public synchronized void join(List<ServerBean> serverBeans) {
+		serverBeans.forEach(this::neighbour);
+	}
+
+	/**
+	 * The method takes a server that exchanged with this one into the active view if there is room,
+	 * so active views tend to be symmetric.
+	 * @param serverBean
+	 */
+	public synchronized void neighbour(ServerBean serverBean) {
+		if (!serverBean.isResolvable() || serverBean.equals(myServer) || servers.contains(serverBean)) return;
+		if (activeSize() < ServerInfo.activeViewSize) {
+			passive.remove(serverBean.getKey());
+			servers.add(serverBean);
+		} else {
+			addPassive(serverBean, Collections.emptyList());
+		}
+	}
+
+	/**
+	 * The method drops a server that was evicted from the active view and replaces it with a
+	 * random server from the passive view. The failure detector evicts the replacement in turn
+	 * if it is gone too.
+	 * @param serverBean
+	 */
+	public synchronized void failed(ServerBean serverBean) {
+		servers.remove(serverBean);
+		passive.remove(serverBean.getKey());
+		fill();
+	}
+
+	/**
+	 * The method moves random servers from the passive view to the active view until the active
+	 * view is full or the passive view is empty.
+	 */
+	public synchronized void fill() {
+		List<ServerBean> candidates = new ArrayList<>(passive.values());
+		Collections.shuffle(candidates, random);
+		for (ServerBean candidate : candidates) {
+			if (activeSize() >= ServerInfo.activeViewSize) break;
+			passive.remove(candidate.getKey());
+			servers.add(candidate);
+		}
+	}
+
+	/**
+	 * The method picks the servers sent in a shuffle: this server, some of the active view and
+	 * some of the passive view.
+	 * @return the servers
+	 */
+	public synchronized List<ServerBean> sample() {
+		List<ServerBean> sample = new ArrayList<>();
+		sample.add(myServer);
+		List<ServerBean> active = servers.servers();
+		active.remove(myServer);
+		Collections.shuffle(active, random);
+		sample.addAll(active.subList(0, Math.min(SHUFFLE_ACTIVE, active.size())));
+		List<ServerBean> reserve = new ArrayList<>(passive.values());
+		Collections.shuffle(reserve, random);
+		sample.addAll(reserve.subList(0, Math.min(SHUFFLE_PASSIVE, reserve.size())));
+		return sample;
+	}
+
+	/**
+	 * The method keeps the servers of a shuffle this server didn't know in the passive view.
+	 * When the passive view is full, the servers this server sent in the shuffle make room first,
+	 * since the other server knows them now.
+	 * @param received the servers sent by the other server
+	 * @param sent the servers this server sent
+	 */
+	public synchronized void merge(List<ServerBean> received, List<ServerBean> sent) {
+		for (ServerBean serverBean : received) {
+			if (!serverBean.isResolvable() || serverBean.equals(myServer) || servers.contains(serverBean)) continue;
+			addPassive(serverBean, sent);
+		}
+	}
+
+	private void addPassive(ServerBean serverBean, List<ServerBean> sent) {
+		if (ServerInfo.passiveViewSize <= 0 || passive.containsKey(serverBean.getKey())) return;
+		if (passive.size() >= ServerInfo.passiveViewSize) {
+			String victim = null;
+			for (ServerBean candidate : sent) {
+				if (passive.containsKey(candidate.getKey())) {
+					victim = candidate.getKey();
+					break;
+				}
+			}
+			if (victim == null) {
+				List<String> keys = new ArrayList<>(passive.keySet());
+				victim = keys.get(random.nextInt(keys.size()));
+			}
+			passive.remove(victim);
+		}
+		passive.put(serverBean.getKey(), serverBean);
+	}
+
+	/**
+	 * The method picks a random server of the passive view to hedge a slow relay with.
+	 * @param exclude servers already asked
+	 * @param filter whether a server may have results
+	 * @return the server, or null if there is none
+	 */
+	public synchronized ServerBean alternate(Collection<ServerBean> exclude, Predicate<ServerBean> filter) {
+		List<ServerBean> candidates = new ArrayList<>(passive.values());
+		candidates.removeAll(exclude);
+		candidates.removeIf(filter.negate());
+		return candidates.isEmpty() ? null : candidates.get(random.nextInt(candidates.size()));
+	}
+
+	/**
+	 * The method records a relayed query.
+	 * @param queryId
+	 * @return true if this is the first copy of the query to reach this server
+	 */
+	public boolean firstSeen(String queryId) {
+		synchronized (seenQueries) {
+			if (seenQueries.put(queryId, Boolean.TRUE) == null) return true;
+		}
+		duplicates.incrementAndGet();
+		return false;
+	}
+
+	private int activeSize() {
+		return servers.size() - 1;
+	}
+
+	/**
+	 * @param serverBeans
+	 * @return the servers as a json array
+	 */
+	public static String toJson(List<ServerBean> serverBeans) {
+		StringBuilder builder = new StringBuilder("[");
+		for (ServerBean serverBean : serverBeans) {
+			if (builder.length() > 1) builder.append(',');
+			builder.append("{\"hostname\":");
+			ResourceCodec.writeString(builder, serverBean.getHostname());
+			builder.append(",\"port\":").append(serverBean.getPort()).append('}');
+		}
+		return builder.append(']').toString();
+	}
+
+	/**
+	 * The method reads the shuffle from the response to an exchange.
+	 * @param response a json string
+	 * @return the servers, or null if the response has no shuffle
+	 */
+	public static List<ServerBean> readResponse(String response) {
+		try {
+			JsonReader reader = new JsonReader(response);
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (reader.nextName().equals("shuffle")) return Command.readServerList(reader);
+				reader.skipValue();
+			}
+		} catch (JSONException e) {
+		}
+		return null;
+	}
+
+	/**
+	 * The method describes the views for the STATS command.
+	 * @return the statistics as a json string
+	 */
+	public synchronized String statistics() {
+		return "{\"active\":" + activeSize() + ",\"passive\":" + passive.size() + ",\"duplicates\":" + duplicates.get() + "}";
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * This class keeps persistent connections to other servers so relayed queries and exchanges
+ * don't open a new socket every time. Each server has a bounded number of idle connections,
+ * the most recently used one is reused first, and connections idle longer than the limit are
+ * closed. A connection that has been idle for a while is checked before it is reused. Servers
+ * which don't support persistent connections are remembered for a while and contacted with a
+ * connection per command instead, and so are servers whose persistent connections hold one of
+ * their threads, since an idle pooled connection would take a thread away from their clients.
+ * A server that turns a connection away because it is busy answers the request with its busy
+ * message.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+public class PeerConnectionPool {
+	private static Logger logger = Logger.getLogger(PeerConnectionPool.class);
+	// idle connections are only checked after this long, a check costs a read with a short timeout
+	private static final long HEALTH_CHECK_AFTER = 1000;  //millisec
+	// how long a server that doesn't support persistent connections is not asked again
+	private static final long LEGACY_RETRY_INTERVAL = 300 * 1000;  //millisec
+
+	// idle connections of each server, the most recently used first
+	private Map<String, LinkedBlockingDeque<IdleConnection>> idleConnections;
+	private Map<String, Long> legacyServers;
+	private ScheduledExecutorService evictor;
+
+	public PeerConnectionPool() {
+		idleConnections = new ConcurrentHashMap<>();
+		legacyServers = new ConcurrentHashMap<>();
+		evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "peer-pool-evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long period = Math.max(1, ServerInfo.peerMaxIdle / 2);
+		evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * The method sends the command to the server over a pooled connection and receives the response.
+	 * If a reused connection turns out to be broken the command is sent once more over a new one,
+	 * so commands sent through the pool have to be safe to repeat.
+	 * @param serverBean
+	 * @param message the command
+	 * @param timeout the connect and read timeout in milliseconds
+	 * @return the messages from the server, an empty list if the connection failed,
+	 *         or null if the server doesn't support persistent connections
+	 */
+	public List<Message> request(ServerBean serverBean, Message message, int timeout) {
+		String key = serverBean.getKey();
+		Long legacySince = legacyServers.get(key);
+		if (legacySince != null) {
+			if (System.currentTimeMillis() - legacySince < LEGACY_RETRY_INTERVAL) return null;
+			legacyServers.remove(key);
+		}
+		for (int attempt = 0; attempt < 2; attempt++) {
+			ClientConnection connection = borrow(key);
+			boolean reused = connection != null;
+			if (!reused) {
+				try {
+					connection = ClientConnection.open(serverBean, timeout);
+				} catch (ProtocolException e) {
+					logger.debug(serverBean + " doesn't support persistent connections");
+					legacyServers.put(key, System.currentTimeMillis());
+					return null;
+				} catch (ClientConnection.BusyException e) {
+					List<Message> messages = new ArrayList<>();
+					messages.add(new Message(MessageType.STRING, e.getMessage(), null, null));
+					return messages;
+				} catch (IOException e) {
+					return new ArrayList<>();
+				}
+			}
+			try {
+				List<Message> messages = connection.request(message, timeout);
+				if (connection.isThreadPerConnection()) {
+					logger.debug(serverBean + " holds a thread per connection, not pooling");
+					connection.close();
+					legacyServers.put(key, System.currentTimeMillis());
+				} else {
+					release(key, connection);
+				}
+				return messages;
+			} catch (IOException e) {
+				// a new connection failing means the server failed, a reused one may just have gone stale,
+				// unless the server didn't answer in time
+				if (!reused || e instanceof SocketTimeoutException) break;
+			}
+		}
+		return new ArrayList<>();
+	}
+
+	/**
+	 * The method closes the idle connections to the server, e.g. when it is removed from the server list.
+	 * @param serverBean
+	 */
+	public void close(ServerBean serverBean) {
+		LinkedBlockingDeque<IdleConnection> idle = idleConnections.remove(serverBean.getKey());
+		if (idle == null) return;
+		IdleConnection entry;
+		while ((entry = idle.pollFirst()) != null) {
+			entry.connection.close();
+		}
+	}
+
+	/**
+	 * The method takes the most recently used healthy connection to the server.
+	 * @param key
+	 * @return the connection or null if there is none
+	 */
+	private ClientConnection borrow(String key) {
+		LinkedBlockingDeque<IdleConnection> idle = idleConnections.get(key);
+		if (idle == null) return null;
+		IdleConnection entry;
+		while ((entry = idle.pollFirst()) != null) {
+			long idleTime = System.currentTimeMillis() - entry.since;
+			if (idleTime < ServerInfo.peerMaxIdle * 1000
+					&& (idleTime < HEALTH_CHECK_AFTER || entry.connection.isHealthy())) {
+				return entry.connection;
+			}
+			entry.connection.close();
+		}
+		return null;
+	}
+
+	/**
+	 * The method puts the connection back into the pool, or closes it if the pool of the server is full.
+	 * @param key
+	 * @param connection
+	 */
+	private void release(String key, ClientConnection connection) {
+		LinkedBlockingDeque<IdleConnection> idle = idleConnections.computeIfAbsent(key,
+				k -> new LinkedBlockingDeque<>(Math.max(1, ServerInfo.peerPoolSize)));
+		if (connection.isClosed() || !idle.offerFirst(new IdleConnection(connection))) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * The method closes the connections which have been idle longer than the limit. The least
+	 * recently used connections are at the end of each deque.
+	 */
+	private void evictIdle() {
+		long now = System.currentTimeMillis();
+		for (LinkedBlockingDeque<IdleConnection> idle : idleConnections.values()) {
+			IdleConnection entry;
+			while ((entry = idle.peekLast()) != null && now - entry.since >= ServerInfo.peerMaxIdle * 1000) {
+				if (idle.removeLastOccurrence(entry)) {
+					entry.connection.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A connection in the pool and the time it was returned.
+	 */
+	private static class IdleConnection {
+		private ClientConnection connection;
+		private long since;
+
+		private IdleConnection(ClientConnection connection) {
+			this.connection = connection;
+			this.since = System.currentTimeMillis();
+		}
+	}
+}
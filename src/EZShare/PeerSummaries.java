@@ -0,0 +1,218 @@
+/**
+ * This class keeps Bloom filter summaries of the resources of other servers, so a relayed query
+ * is only sent to servers which may have a result. A summary holds the channels of a server and
+ * the tags and uris within each channel. Servers send their summary along with the EXCHANGE
+ * command and its response. A query is not relayed to a server whose summary lacks its channel,
+ * one of its tags or its uri. A summary is only as recent as the last exchange, so it misses
+ * resources published since, and leaving a server out because of it can lose results. Pruning
+ * is therefore only done when it is turned on, a summary is only trusted for a short time and
+ * servers without a recent summary are always queried.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.wink.json4j.JSONException;
+
+public class PeerSummaries {
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+	// keeps a summary well within the 64KB limit of writeUTF messages
+	private static final int MAX_BITS = 256 * 1024;
+
+	private Map<String, Summary> summaries;
+	private AtomicLong skipped = new AtomicLong();
+	// the summary of this server and the version of the store it was built from
+	private long localVersion = -1;
+	private String localSummary;
+
+	public PeerSummaries() {
+		summaries = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * The method returns the summary of this server, built again only if the resources changed.
+	 * @param store the resources of this server
+	 * @param myServer
+	 * @return the summary as a json object
+	 */
+	public synchronized String localSummary(ResourceStore store, ServerBean myServer) {
+		if (localSummary != null && localVersion == store.getVersion()) return localSummary;
+		Set<String> items = new HashSet<>();
+		long version;
+		try (ResourceStore.Snapshot snapshot = store.snapshot()) {
+			version = snapshot.getVersion();
+			for (Resource resource : snapshot.resources()) {
+				items.add(channelItem(resource.getChannel()));
+				items.add(uriItem(resource.getChannel(), resource.getUri().toString()));
+				for (String tag : resource.getLowerCaseTags()) {
+					items.add(tagItem(resource.getChannel(), tag));
+				}
+			}
+		}
+		BloomFilter filter = BloomFilter.create(items.size(), FALSE_POSITIVE_RATE, MAX_BITS);
+		items.forEach(filter::add);
+		StringBuilder builder = new StringBuilder("{\"hostname\":");
+		ResourceCodec.writeString(builder, myServer.getHostname());
+		builder.append(",\"port\":").append(myServer.getPort()).append(",\"hashes\":").append(filter.getHashes())
+				.append(",\"bits\":\"").append(filter.encode()).append("\"}");
+		localSummary = builder.toString();
+		localVersion = version;
+		return localSummary;
+	}
+
+	/**
+	 * The method stores the summary a server sent.
+	 * @param serverBean the server, as this server knows it
+	 * @param filter
+	 */
+	public void update(ServerBean serverBean, BloomFilter filter) {
+		summaries.put(serverBean.getKey(), new Summary(serverBean, filter));
+	}
+
+	/**
+	 * The method forgets the summary of a server, e.g. when it is removed from the server list.
+	 * @param serverBean
+	 */
+	public void remove(ServerBean serverBean) {
+		summaries.remove(serverBean.getKey());
+	}
+
+	/**
+	 * The method checks whether the server may have resources matching the query template.
+	 * @param serverBean
+	 * @param template
+	 * @return false if pruning is on and the summary of the server proves it has no match,
+	 *         true if it may have one or there is no recent summary
+	 */
+	public boolean mayMatch(ServerBean serverBean, Resource template) {
+		if (!ServerInfo.relayPruning) return true;
+		Summary summary = summaries.get(serverBean.getKey());
+		if (summary == null || System.currentTimeMillis() - summary.received > ServerInfo.summaryMaxAge * 1000L) return true;
+		String channel = template.getChannel();
+		boolean mayMatch = summary.filter.mightContain(channelItem(channel));
+		for (String tag : template.getLowerCaseTags()) {
+			mayMatch = mayMatch && summary.filter.mightContain(tagItem(channel, tag));
+		}
+		String uri = template.getUri().toString();
+		if (!uri.equals("")) {
+			mayMatch = mayMatch && summary.filter.mightContain(uriItem(channel, uri));
+		}
+		if (!mayMatch) {
+			skipped.incrementAndGet();
+		}
+		return mayMatch;
+	}
+
+	/**
+	 * The method describes the summaries for the STATS command.
+	 * @return the statistics as a json string
+	 */
+	public String statistics() {
+		return "{\"peers\":" + summaries.size() + ",\"skipped\":" + skipped.get() + "}";
+	}
+
+	/**
+	 * The method reads a summary sent by a server.
+	 * @param reader positioned at the summary object
+	 * @return the server and its filter, or null if the summary is incomplete or the filter is malformed
+	 * @throws JSONException if the json is malformed
+	 */
+	public static Summary read(JsonReader reader) throws JSONException {
+		String hostname = null;
+		Integer port = null;
+		Integer hashes = null;
+		String bits = null;
+		reader.beginObject();
+		while (reader.hasNext()) {
+			switch (reader.nextName()) {
+			case "hostname":
+				hostname = reader.nextString();
+				break;
+			case "port":
+				port = reader.nextInt();
+				break;
+			case "hashes":
+				hashes = reader.nextInt();
+				break;
+			case "bits":
+				bits = reader.nextString();
+				break;
+			default:
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+		if (hostname == null || port == null || hashes == null || bits == null) return null;
+		try {
+			return new Summary(new ServerBean(hostname, port), BloomFilter.decode(hashes, bits));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The method reads the summary from the response to an exchange.
+	 * @param response a json string
+	 * @return the filter, or null if the response has no valid summary
+	 */
+	public static BloomFilter readResponse(String response) {
+		try {
+			JsonReader reader = new JsonReader(response);
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (reader.nextName().equals("summary")) {
+					Summary summary = read(reader);
+					return summary == null ? null : summary.filter;
+				}
+				reader.skipValue();
+			}
+		} catch (JSONException e) {
+		}
+		return null;
+	}
+
+	private static String channelItem(String channel) {
+		return "c" + channel;
+	}
+
+	private static String tagItem(String channel, String tag) {
+		return "t" + channel + "\0" + tag;
+	}
+
+	private static String uriItem(String channel, String uri) {
+		return "u" + channel + "\0" + uri;
+	}
+
+	/**
+	 * The summary of a server and when it was received.
+	 */
+	public static class Summary {
+		private ServerBean serverBean;
+		private BloomFilter filter;
+		private long received;
+
+		private Summary(ServerBean serverBean, BloomFilter filter) {
+			this.serverBean = serverBean;
+			this.filter = filter;
+			this.received = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return the server that sent the summary, as it calls itself
+		 */
+		public ServerBean getServerBean() {
+			return serverBean;
+		}
+
+		public BloomFilter getFilter() {
+			return filter;
+		}
+	}
+}
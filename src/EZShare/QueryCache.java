@@ -0,0 +1,200 @@
+/**
+ * This class caches the results of queries, since clients tend to send the same few queries over
+ * and over. Local results are kept together with the generations of the channel or the tags the
+ * query reads (see ResourceStore.generation) and are only used while those haven't changed, so a
+ * publish, share or remove drops exactly the results it could have changed. Results relayed from
+ * other servers can't be tracked that way, so they are kept for a time to live instead. When the
+ * cache is full the least recently used results are dropped.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class QueryCache {
+	// results of queries with more results than this are not cached
+	private static final int MAX_RESULTS = 1000;
+
+	private int capacity;
+	private LinkedHashMap<String, CachedResult> entries;
+	private AtomicLong localHits = new AtomicLong();
+	private AtomicLong localMisses = new AtomicLong();
+	private AtomicLong relayHits = new AtomicLong();
+	private AtomicLong relayMisses = new AtomicLong();
+
+	/**
+	 * @param capacity the number of results kept, 0 turns the cache off
+	 */
+	public QueryCache(int capacity) {
+		this.capacity = capacity;
+		// in access order, so the eldest entry is the least recently used
+		entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+				return size() > QueryCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * The method reads the generations of the resources the query can match. It has to be called
+	 * before the query reads the store, so a write during the query makes the results stale.
+	 * @param store
+	 * @param template
+	 * @return the generations
+	 */
+	public long[] stamp(ResourceStore store, Resource template) {
+		if (template.getLowerCaseTags().isEmpty()) {
+			return new long[] { store.generation(template.getChannel(), null) };
+		}
+		// a resource can only match if it has every tag, so a write to it advances every one of them
+		List<String> tags = new ArrayList<>(new TreeSet<>(template.getLowerCaseTags()));
+		long[] stamp = new long[tags.size()];
+		for (int i = 0; i < stamp.length; i++) {
+			stamp[i] = store.generation(template.getChannel(), tags.get(i));
+		}
+		return stamp;
+	}
+
+	/**
+	 * The method looks up the local results of a query.
+	 * @param store
+	 * @param template
+	 * @return the results, or null if they aren't cached or may have changed
+	 */
+	public List<Message> getLocal(ResourceStore store, Resource template) {
+		if (capacity <= 0) return null;
+		CachedResult entry = get(key("local", template));
+		if (entry != null && Arrays.equals(entry.stamp, stamp(store, template))) {
+			localHits.incrementAndGet();
+			return entry.results;
+		}
+		localMisses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * The method caches the local results of a query.
+	 * @param template
+	 * @param stamp the generations read before the query
+	 * @param results
+	 */
+	public void putLocal(Resource template, long[] stamp, List<Message> results) {
+		if (capacity <= 0 || results.size() > MAX_RESULTS) return;
+		put(key("local", template), new CachedResult(results, stamp, Long.MAX_VALUE));
+	}
+
+	/**
+	 * The method looks up the results other servers returned for a relayed query.
+	 * @param template the template sent to the other servers
+	 * @param serverBeans the servers the query is sent to
+	 * @return the results, or null if they aren't cached or have expired
+	 */
+	public List<Message> getRelayed(Resource template, List<ServerBean> serverBeans) {
+		if (capacity <= 0 || ServerInfo.queryCacheTtl <= 0) return null;
+		CachedResult entry = get(relayedKey(template, serverBeans));
+		if (entry != null && System.currentTimeMillis() < entry.expires) {
+			relayHits.incrementAndGet();
+			return entry.results;
+		}
+		relayMisses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * The method caches the results other servers returned for a relayed query. Results are only
+	 * cached if every server answered.
+	 * @param template the template sent to the other servers
+	 * @param serverBeans the servers the query was sent to
+	 * @param results
+	 */
+	public void putRelayed(Resource template, List<ServerBean> serverBeans, List<Message> results) {
+		if (capacity <= 0 || ServerInfo.queryCacheTtl <= 0 || results.size() > MAX_RESULTS) return;
+		long expires = System.currentTimeMillis() + ServerInfo.queryCacheTtl * 1000L;
+		put(relayedKey(template, serverBeans), new CachedResult(results, null, expires));
+	}
+
+	/**
+	 * The key of relayed results includes the servers asked, which changes as servers come and go
+	 * or are answered from elsewhere.
+	 */
+	private static String relayedKey(Resource template, List<ServerBean> serverBeans) {
+		StringBuilder builder = new StringBuilder(key("relayed", template)).append('|');
+		TreeSet<String> servers = new TreeSet<>();
+		for (ServerBean serverBean : serverBeans) {
+			servers.add(serverBean.getKey());
+		}
+		for (String server : servers) {
+			ResourceCodec.writeString(builder, server);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * The method describes the cache for the STATS command.
+	 * @return the statistics as a json string
+	 */
+	public String statistics() {
+		int size;
+		synchronized (entries) {
+			size = entries.size();
+		}
+		return "{\"size\":" + size + ",\"capacity\":" + Math.max(0, capacity)
+				+ ",\"localHits\":" + localHits.get() + ",\"localMisses\":" + localMisses.get()
+				+ ",\"relayHits\":" + relayHits.get() + ",\"relayMisses\":" + relayMisses.get() + "}";
+	}
+
+	private CachedResult get(String key) {
+		synchronized (entries) {
+			return entries.get(key);
+		}
+	}
+
+	private void put(String key, CachedResult entry) {
+		synchronized (entries) {
+			entries.put(key, entry);
+		}
+	}
+
+	/**
+	 * The method builds the key of a query. Tags are compared in lower case and in any order, and
+	 * the other fields are written as json strings, so different templates never share a key.
+	 */
+	private static String key(String kind, Resource template) {
+		StringBuilder builder = new StringBuilder(kind);
+		ResourceCodec.writeString(builder, template.getChannel());
+		ResourceCodec.writeString(builder, template.getOwner());
+		ResourceCodec.writeString(builder, template.getUri().toString());
+		ResourceCodec.writeString(builder, template.getName());
+		ResourceCodec.writeString(builder, template.getDescription());
+		for (String tag : new TreeSet<>(template.getLowerCaseTags())) {
+			ResourceCodec.writeString(builder, tag);
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * The results of a query, with the generations they were computed at or the time they expire.
+	 */
+	private static class CachedResult {
+		private List<Message> results;
+		private long[] stamp;
+		private long expires;
+
+		private CachedResult(List<Message> results, long[] stamp, long expires) {
+			this.results = results;
+			this.stamp = stamp;
+			this.expires = expires;
+		}
+	}
+}
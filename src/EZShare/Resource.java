@@ -17,7 +17,9 @@ import org.apache.wink.json4j.JSONObject;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class Resource implements Cloneable {
 	/**
@@ -33,6 +35,8 @@ public class Resource implements Cloneable {
     private String owner; //optional; default ""; can't be "*"
     private ServerBean serverBean; //optional; default ""
     private long size; // optional; file size(B)
+    private Set<String> lowerCaseTags; // tags in lower case, built when first needed
+    private volatile ResourceCodec.PublicForm publicForm; // as sent in query results, built when first needed
 
     public String getName() {
         return name;
@@ -40,6 +44,7 @@ public class Resource implements Cloneable {
 
     public void setName(String name) {
         this.name = name;
+        this.publicForm = null;
     }
 
     public String getDescription() {
@@ -48,6 +53,7 @@ public class Resource implements Cloneable {
 
     public void setDescription(String description) {
         this.description = description;
+        this.publicForm = null;
     }
 
     public List<String> getTags() {
@@ -56,6 +62,39 @@ public class Resource implements Cloneable {
 
     public void setTags(List<String> tags) {
         this.tags = tags;
+        this.lowerCaseTags = null;
+        this.publicForm = null;
+    }
+
+    /**
+     * The method returns the tags in lower case, which is how tags are compared.
+     * @return lowerCaseTags
+     */
+    public Set<String> getLowerCaseTags() {
+        Set<String> lowerCaseTags = this.lowerCaseTags;
+        if (lowerCaseTags == null) {
+            lowerCaseTags = new HashSet<>();
+            if (tags != null) {
+                for (String tag : tags) {
+                    lowerCaseTags.add(tag.toLowerCase());
+                }
+            }
+            this.lowerCaseTags = lowerCaseTags;
+        }
+        return lowerCaseTags;
+    }
+
+    /**
+     * The method returns the form of the resource that is sent in query results, if it has been built.
+     * It is dropped whenever the resource changes.
+     * @return publicForm or null
+     */
+    public ResourceCodec.PublicForm getPublicForm() {
+        return publicForm;
+    }
+
+    public void setPublicForm(ResourceCodec.PublicForm publicForm) {
+        this.publicForm = publicForm;
     }
 
     public URI getUri() {
@@ -64,6 +103,7 @@ public class Resource implements Cloneable {
 
     public void setUri(URI uri) {
         this.uri = uri;
+        this.publicForm = null;
     }
 
     public String getChannel() {
@@ -72,6 +112,7 @@ public class Resource implements Cloneable {
 
     public void setChannel(String channel) {
         this.channel = channel;
+        this.publicForm = null;
     }
 
     public String getOwner() {
@@ -80,6 +121,7 @@ public class Resource implements Cloneable {
 
     public void setOwner(String owner) {
         this.owner = owner;
+        this.publicForm = null;
     }
 
     public ServerBean getServerBean() {
@@ -96,6 +138,24 @@ public class Resource implements Cloneable {
 
     public void setSize(long size) {
         this.size = size;
+        this.publicForm = null;
+    }
+
+    /**
+     * The method is to check whether the resource matches a query template. The channel has to be
+     * the same, and owner, tags, uri, name and description have to match if they are given.
+     * @param template
+     * @return true if the resource matches
+     *         false if not
+     */
+    public boolean matches(Resource template) {
+        return template.getChannel().equals(channel) &&
+                (template.getOwner().equals("") || template.getOwner().equals(owner)) &&
+                getLowerCaseTags().containsAll(template.getLowerCaseTags()) &&
+                (template.getUri().toString().equals("") || template.getUri().equals(uri)) &&
+                ((template.getName().equals("") && template.getDescription().equals("")) ||
+                        (!template.getName().equals("") && name.contains(template.getName())) ||
+                        (!template.getDescription().equals("") && description.contains(template.getDescription())));
     }
 
     /**
@@ -196,7 +256,7 @@ public class Resource implements Cloneable {
 		resource.setServerBean(serverBean);
 		if (resourceObject.has("resourceSize")){
 			try {
-				resource.setSize(resourceObject.getInt("resourceSize"));
+				resource.setSize(resourceObject.getLong("resourceSize"));
 			} catch (JSONException e) { 
 				e.printStackTrace();
 			}
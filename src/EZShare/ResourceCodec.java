@@ -0,0 +1,290 @@
+/**
+ * This class converts resources between Resource objects and json without going through
+ * wink-json4j objects. Resources are read from a JsonReader straight into a Resource and written
+ * straight into a StringBuilder, in the same field order and escaping as Resource.toJson, so the
+ * messages on the wire don't change.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.wink.json4j.JSONException;
+
+public class ResourceCodec {
+	// a bit for each field a resource object must have, see Resource.checkValidity
+	private static final int NAME = 1;
+	private static final int TAGS = 2;
+	private static final int DESCRIPTION = 4;
+	private static final int URI_FIELD = 8;
+	private static final int CHANNEL = 16;
+	private static final int OWNER = 32;
+	private static final int EZSERVER = 64;
+	public static final int ALL_FIELDS = 127;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * The method parses a resource from a json string.
+	 * @param json
+	 * @return the resource, or null if the json isn't a complete and valid resource
+	 */
+	public static Resource parse(String json) {
+		try {
+			JsonReader reader = new JsonReader(json);
+			Resource resource = new Resource();
+			return readFields(reader, resource, null) == ALL_FIELDS ? resource : null;
+		} catch (JSONException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The method reads a resource object into the resource. Fields which are not part of a
+	 * resource are passed to the handler, or skipped if there is none.
+	 * @param reader positioned at the resource object
+	 * @param resource the resource to fill in, fields which are missing keep their defaults
+	 * @param extraFields reads fields which are not part of a resource, may be null
+	 * @return the bits of the fields that were present, ALL_FIELDS for a complete resource
+	 * @throws JSONException if the json is malformed or a field has the wrong type
+	 * @throws IllegalArgumentException if the uri or ezserver is invalid
+	 */
+	public static int readFields(JsonReader reader, Resource resource, ExtraFields extraFields) throws JSONException {
+		int fields = 0;
+		resource.setName("");
+		resource.setDescription("");
+		resource.setChannel("");
+		resource.setOwner("");
+		resource.setTags(new ArrayList<>());
+		resource.setUri(null);
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			switch (name) {
+			case "name":
+				resource.setName(string(reader));
+				fields |= NAME;
+				break;
+			case "description":
+				resource.setDescription(string(reader));
+				fields |= DESCRIPTION;
+				break;
+			case "channel":
+				resource.setChannel(string(reader));
+				fields |= CHANNEL;
+				break;
+			case "owner":
+				resource.setOwner(string(reader));
+				fields |= OWNER;
+				break;
+			case "uri":
+				resource.setUri(uri(string(reader)));
+				fields |= URI_FIELD;
+				break;
+			case "ezserver":
+				resource.setServerBean(serverBean(string(reader)));
+				fields |= EZSERVER;
+				break;
+			case "tags":
+				resource.setTags(tags(reader));
+				fields |= TAGS;
+				break;
+			case "resourceSize":
+				resource.setSize(reader.nextLong());
+				break;
+			default:
+				if (extraFields == null) {
+					reader.skipValue();
+				} else {
+					extraFields.read(name, reader);
+				}
+			}
+		}
+		reader.endObject();
+		return fields;
+	}
+
+	private static String string(JsonReader reader) throws JSONException {
+		String value = reader.nextString();
+		return value == null ? "" : value;
+	}
+
+	private static List<String> tags(JsonReader reader) throws JSONException {
+		List<String> tags = new ArrayList<>();
+		if (reader.peek() == JsonReader.Token.NULL) {
+			reader.skipValue();
+			return tags;
+		}
+		reader.beginArray();
+		while (reader.hasNext()) {
+			tags.add(string(reader));
+		}
+		reader.endArray();
+		return tags;
+	}
+
+	private static URI uri(String uri) {
+		try {
+			return new URI(uri);
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException("invalid uri: " + uri);
+		}
+	}
+
+	private static ServerBean serverBean(String ezserver) {
+		if (ezserver.equals("")) return null;
+		int colon = ezserver.lastIndexOf(':');
+		if (colon < 0) throw new IllegalArgumentException("invalid ezserver: " + ezserver);
+		try {
+			return new ServerBean(ezserver.substring(0, colon), Integer.parseInt(ezserver.substring(colon + 1)));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid ezserver: " + ezserver);
+		}
+	}
+
+	/**
+	 * The method returns the resource as it is sent in query results: the owner is hidden and the
+	 * server is set to this server. A stored resource is sent to many clients, so the message is
+	 * built and encoded once and kept with the resource until the resource changes. Republishing
+	 * a resource stores a new resource, so it gets a new message.
+	 * @param resource a stored resource
+	 * @param serverBean the server the resource is stored on
+	 * @return the message
+	 */
+	public static Message publicMessage(Resource resource, ServerBean serverBean) {
+		PublicForm publicForm = resource.getPublicForm();
+		if (publicForm == null || publicForm.serverBean != serverBean) {
+			StringBuilder builder = new StringBuilder(256);
+			write(builder, resource, resource.getOwner().equals("") ? "" : "*", serverBean);
+			String json = builder.toString();
+			// the json is ASCII, every other character is escaped
+			publicForm = new PublicForm(serverBean, new Message(json, json.getBytes(StandardCharsets.US_ASCII)));
+			resource.setPublicForm(publicForm);
+		}
+		return publicForm.message;
+	}
+
+	/**
+	 * The method converts the resource into json.
+	 * @param resource
+	 * @return the json string
+	 */
+	public static String toJson(Resource resource) {
+		StringBuilder builder = new StringBuilder(128);
+		write(builder, resource, resource.getOwner(), resource.getServerBean());
+		return builder.toString();
+	}
+
+	/**
+	 * The method writes the resource as json, with the owner and server given instead of the
+	 * resource's own, so query results don't need a copy of the resource.
+	 * @param builder the output
+	 * @param resource
+	 * @param owner the owner to write
+	 * @param serverBean the server to write, may be null
+	 */
+	public static void write(StringBuilder builder, Resource resource, String owner, ServerBean serverBean) {
+		builder.append("{\"name\":");
+		writeString(builder, resource.getName());
+		builder.append(",\"tags\":[");
+		if (resource.getTags() != null) {
+			boolean first = true;
+			for (String tag : resource.getTags()) {
+				if (!first) builder.append(',');
+				writeString(builder, tag);
+				first = false;
+			}
+		}
+		builder.append("],\"description\":");
+		writeString(builder, resource.getDescription());
+		builder.append(",\"uri\":");
+		writeString(builder, resource.getUri() == null ? "" : resource.getUri().toString());
+		builder.append(",\"channel\":");
+		writeString(builder, resource.getChannel());
+		builder.append(",\"owner\":");
+		writeString(builder, owner);
+		builder.append(",\"ezserver\":");
+		writeString(builder, serverBean == null ? "" : serverBean.toString());
+		if (resource.getSize() > 0) {
+			builder.append(",\"resourceSize\":").append(resource.getSize());
+		}
+		builder.append('}');
+	}
+
+	/**
+	 * The method writes a json string with the escaping of wink-json4j: '/' is escaped, "\0" is
+	 * written as \0 and other characters outside printable ASCII are written as unicode escapes.
+	 * @param builder the output
+	 * @param value the string, null is written as ""
+	 */
+	public static void writeString(StringBuilder builder, String value) {
+		builder.append('"');
+		if (value != null) {
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				switch (c) {
+				case '"':
+					builder.append("\\\"");
+					break;
+				case '\\':
+					builder.append("\\\\");
+					break;
+				case '/':
+					builder.append("\\/");
+					break;
+				case '\b':
+					builder.append("\\b");
+					break;
+				case '\f':
+					builder.append("\\f");
+					break;
+				case '\n':
+					builder.append("\\n");
+					break;
+				case '\r':
+					builder.append("\\r");
+					break;
+				case '\t':
+					builder.append("\\t");
+					break;
+				case '\0':
+					builder.append("\\0");
+					break;
+				default:
+					if (c < 0x20 || c >= 0x7f) {
+						builder.append("\\u").append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf])
+								.append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+					} else {
+						builder.append(c);
+					}
+				}
+			}
+		}
+		builder.append('"');
+	}
+
+	/**
+	 * The form of a resource that is sent in query results, for the server it was built for.
+	 */
+	public static final class PublicForm {
+		private final ServerBean serverBean;
+		private final Message message;
+
+		private PublicForm(ServerBean serverBean, Message message) {
+			this.serverBean = serverBean;
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Reads the fields of a resource object which are not part of a resource.
+	 */
+	public interface ExtraFields {
+		void read(String name, JsonReader reader) throws JSONException;
+	}
+}
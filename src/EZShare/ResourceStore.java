@@ -0,0 +1,527 @@
+/**
+ * This class stores the resources of the server. A channel and uri identify at most one resource,
+ * so resources are kept in a concurrent map keyed by (channel, uri) and publishing, removing and
+ * looking up a resource doesn't scan the other resources. Inverted indexes from channels, tags and
+ * trigrams of names and descriptions let queries visit only the resources that can match.
+ * Every write creates a new version of the store. Queries read a snapshot of a version without
+ * locking, while writers keep the older versions of a resource until no snapshot can see them.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ResourceStore {
+	private ConcurrentHashMap<Key, Version> versions;
+	// inverted indexes from a lower case tag or a channel to the resources that have it
+	private ConcurrentHashMap<String, Set<Key>> tagIndex;
+	private ConcurrentHashMap<String, Set<Key>> channelIndex;
+	// trigram indexes over names and descriptions, used to find candidates for substring matches
+	private ConcurrentHashMap<String, Set<Key>> nameIndex;
+	private ConcurrentHashMap<String, Set<Key>> descriptionIndex;
+	private static final int GRAM_LENGTH = 3;
+	// the last committed version and the number of open snapshots of each version
+	private volatile long version;
+	private ConcurrentHashMap<Long, Integer> openSnapshots;
+	// keys with versions that may no longer be visible to any snapshot, only used by writers
+	private Set<Key> pruneQueue;
+	// the number of writes to each channel and to each tag within a channel
+	private ConcurrentHashMap<String, AtomicLong> generations;
+	// the latest writes in version order, so other servers can copy the changes since a version
+	private ArrayDeque<Change> changeLog;
+	private static final int CHANGE_LOG_SIZE = 10000;
+
+	public ResourceStore() {
+		versions = new ConcurrentHashMap<>();
+		tagIndex = new ConcurrentHashMap<>();
+		channelIndex = new ConcurrentHashMap<>();
+		nameIndex = new ConcurrentHashMap<>();
+		descriptionIndex = new ConcurrentHashMap<>();
+		openSnapshots = new ConcurrentHashMap<>();
+		pruneQueue = new LinkedHashSet<>();
+		generations = new ConcurrentHashMap<>();
+		changeLog = new ArrayDeque<>();
+	}
+
+	/**
+	 * The method adds the resource, or replaces the resource with the same channel and uri if it
+	 * has the same owner. Writers are serialized so the indexes always follow the resources.
+	 * @param resource
+	 * @return true if the resource is stored
+	 *         false if the channel and uri belong to a resource of another owner
+	 */
+	public synchronized boolean put(Resource resource) {
+		Key key = new Key(resource.getChannel(), resource.getUri());
+		Version head = versions.get(key);
+		Resource existing = head == null ? null : head.resource;
+		if (existing != null && !existing.getOwner().equals(resource.getOwner())) return false;
+		// index the new version first so queries never miss a key that stays in a posting
+		index(key, resource);
+		commit(key, resource, head);
+		advanceGenerations(existing);
+		advanceGenerations(resource);
+		return true;
+	}
+
+	/**
+	 * The method removes the resource with the same owner, channel and uri.
+	 * @param resource
+	 * @return true if a resource is removed
+	 *         false if there is no such resource
+	 */
+	public synchronized boolean remove(Resource resource) {
+		Key key = new Key(resource.getChannel(), resource.getUri());
+		Version head = versions.get(key);
+		if (head == null || head.resource == null || !head.resource.getOwner().equals(resource.getOwner())) return false;
+		commit(key, null, head);
+		advanceGenerations(head.resource);
+		return true;
+	}
+
+	/**
+	 * The method looks up the latest resource with the channel and uri, whoever the owner is.
+	 * @param channel
+	 * @param uri
+	 * @return the resource or null if there is none
+	 */
+	public Resource get(String channel, URI uri) {
+		Version head = versions.get(new Key(channel, uri));
+		return head == null ? null : head.resource;
+	}
+
+	/**
+	 * The method opens a snapshot of the latest version. The snapshot has to be closed, otherwise
+	 * the store keeps every version written after it.
+	 * @return snapshot
+	 */
+	public Snapshot snapshot() {
+		while (true) {
+			long snapshotVersion = version;
+			openSnapshots.merge(snapshotVersion, 1, Integer::sum);
+			// a writer that committed in between may not have seen this snapshot when pruning
+			if (version == snapshotVersion) return new Snapshot(snapshotVersion);
+			release(snapshotVersion);
+		}
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * The method returns the writes committed after a version, oldest first. Only the latest
+	 * writes are kept, so older versions can't be caught up with this way.
+	 * @param since a version returned by getVersion
+	 * @return the changes, or null if some of them are no longer kept
+	 */
+	public synchronized List<Change> changesSince(long since) {
+		List<Change> changes = new ArrayList<>();
+		if (since >= version) return changes;
+		if (changeLog.isEmpty() || changeLog.peekFirst().version > since + 1) return null;
+		Iterator<Change> iterator = changeLog.descendingIterator();
+		while (iterator.hasNext()) {
+			Change change = iterator.next();
+			if (change.version <= since) break;
+			changes.add(change);
+		}
+		Collections.reverse(changes);
+		return changes;
+	}
+
+	/**
+	 * The method returns the generation of a channel, or of a tag within a channel, which grows
+	 * with every write to a resource in the channel, or to a resource with the tag. A result
+	 * computed after reading the generations is still valid as long as they haven't changed.
+	 * @param channel
+	 * @param tag a lower case tag, or null for the whole channel
+	 * @return generation
+	 */
+	public long generation(String channel, String tag) {
+		AtomicLong generation = generations.get(generationKey(channel, tag));
+		return generation == null ? 0 : generation.get();
+	}
+
+	/**
+	 * The method advances the generations a write of the resource changes. It is called after the
+	 * write is committed, so a reader that saw the old generation may have missed the write.
+	 * @param resource the old or the new resource, may be null
+	 */
+	private void advanceGenerations(Resource resource) {
+		if (resource == null) return;
+		generations.computeIfAbsent(generationKey(resource.getChannel(), null), k -> new AtomicLong()).incrementAndGet();
+		for (String tag : resource.getLowerCaseTags()) {
+			generations.computeIfAbsent(generationKey(resource.getChannel(), tag), k -> new AtomicLong()).incrementAndGet();
+		}
+	}
+
+	private static String generationKey(String channel, String tag) {
+		// attributes don't contain "\0", and if one did sharing a key would only advance it more often
+		return tag == null ? channel : channel + "\0" + tag;
+	}
+
+	private void release(long snapshotVersion) {
+		openSnapshots.computeIfPresent(snapshotVersion, (v, count) -> count == 1 ? null : count - 1);
+	}
+
+	/**
+	 * The method publishes a new version of the key and drops the versions no snapshot can see.
+	 * @param key
+	 * @param resource the new resource, or null if the resource is removed
+	 * @param head the current version of the key
+	 */
+	private void commit(Key key, Resource resource, Version head) {
+		long next = version + 1;
+		versions.put(key, new Version(resource, next, head));
+		version = next;
+		changeLog.addLast(new Change(next, key, resource));
+		if (changeLog.size() > CHANGE_LOG_SIZE) {
+			changeLog.removeFirst();
+		}
+		if (head != null) {
+			pruneQueue.add(key);
+		}
+		prune();
+	}
+
+	/**
+	 * The method drops, for every key in the prune queue, the versions that are older than the
+	 * version the oldest open snapshot sees, and removes their terms from the indexes.
+	 */
+	private void prune() {
+		long horizon = version;
+		for (Long snapshotVersion : openSnapshots.keySet()) {
+			horizon = Math.min(horizon, snapshotVersion);
+		}
+		Iterator<Key> keys = pruneQueue.iterator();
+		while (keys.hasNext()) {
+			Key key = keys.next();
+			Version head = versions.get(key);
+			List<Resource> retained = new ArrayList<>();
+			Version visible = head;
+			while (visible != null && visible.version > horizon) {
+				if (visible.resource != null) retained.add(visible.resource);
+				visible = visible.previous;
+			}
+			if (visible == null) continue;
+			if (visible.resource != null) retained.add(visible.resource);
+			Version dropped = visible.previous;
+			visible.previous = null;
+			for (; dropped != null; dropped = dropped.previous) {
+				if (dropped.resource != null) unindex(key, dropped.resource, retained);
+			}
+			if (visible == head) {
+				if (head.resource == null) {
+					versions.remove(key, head);
+				}
+				keys.remove();
+			}
+		}
+	}
+
+	/**
+	 * The method returns the keys of resources whose name contains the name of the template or whose
+	 * description contains the description of the template, as far as the trigram indexes can tell.
+	 * @param template
+	 * @return the keys, or null if the template doesn't restrict name and description or a
+	 *         restriction is too short to be looked up in the indexes
+	 */
+	private Set<Key> textCandidates(Resource template) {
+		String name = template.getName();
+		String description = template.getDescription();
+		if (name.equals("") && description.equals("")) return null;
+		if ((!name.equals("") && name.length() < GRAM_LENGTH) || (!description.equals("") && description.length() < GRAM_LENGTH))
+			return null;
+		Set<Key> keys = new HashSet<>();
+		if (!name.equals("")) {
+			keys.addAll(gramCandidates(nameIndex, name));
+		}
+		if (!description.equals("")) {
+			keys.addAll(gramCandidates(descriptionIndex, description));
+		}
+		return keys;
+	}
+
+	/**
+	 * The method intersects the postings of all trigrams of the text, starting from the smallest.
+	 */
+	private static Set<Key> gramCandidates(ConcurrentHashMap<String, Set<Key>> index, String text) {
+		List<Set<Key>> postings = new ArrayList<>();
+		for (String gram : grams(text)) {
+			Set<Key> posting = index.get(gram);
+			if (posting == null) return Collections.emptySet();
+			postings.add(posting);
+		}
+		postings.sort(Comparator.comparingInt(Set::size));
+		Set<Key> keys = new HashSet<>(postings.get(0));
+		for (int i = 1; i < postings.size() && !keys.isEmpty(); i++) {
+			keys.retainAll(postings.get(i));
+		}
+		return keys;
+	}
+
+	/**
+	 * The method returns the distinct trigrams of the text.
+	 */
+	private static Set<String> grams(String text) {
+		Set<String> grams = new HashSet<>();
+		for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+			grams.add(text.substring(i, i + GRAM_LENGTH));
+		}
+		return grams;
+	}
+
+	/**
+	 * The method adds the key to the postings of the channel, tags, name and description of the resource.
+	 */
+	private void index(Key key, Resource resource) {
+		addPosting(channelIndex, resource.getChannel(), key);
+		for (String tag : resource.getLowerCaseTags()) {
+			addPosting(tagIndex, tag, key);
+		}
+		for (String gram : grams(resource.getName())) {
+			addPosting(nameIndex, gram, key);
+		}
+		for (String gram : grams(resource.getDescription())) {
+			addPosting(descriptionIndex, gram, key);
+		}
+	}
+
+	/**
+	 * The method removes the key from the postings of the channel, tags, name and description of
+	 * a dropped version which none of the retained versions of the key have.
+	 * @param key
+	 * @param resource the dropped version
+	 * @param retained the versions of the key that are still visible
+	 */
+	private void unindex(Key key, Resource resource, List<Resource> retained) {
+		Set<String> tags = new HashSet<>();
+		Set<String> nameGrams = new HashSet<>();
+		Set<String> descriptionGrams = new HashSet<>();
+		for (Resource version : retained) {
+			tags.addAll(version.getLowerCaseTags());
+			nameGrams.addAll(grams(version.getName()));
+			descriptionGrams.addAll(grams(version.getDescription()));
+		}
+		if (retained.isEmpty()) {
+			removePosting(channelIndex, resource.getChannel(), key);
+		}
+		for (String tag : resource.getLowerCaseTags()) {
+			if (!tags.contains(tag)) {
+				removePosting(tagIndex, tag, key);
+			}
+		}
+		for (String gram : grams(resource.getName())) {
+			if (!nameGrams.contains(gram)) {
+				removePosting(nameIndex, gram, key);
+			}
+		}
+		for (String gram : grams(resource.getDescription())) {
+			if (!descriptionGrams.contains(gram)) {
+				removePosting(descriptionIndex, gram, key);
+			}
+		}
+	}
+
+	private static void addPosting(ConcurrentHashMap<String, Set<Key>> index, String term, Key key) {
+		index.computeIfAbsent(term, t -> ConcurrentHashMap.newKeySet()).add(key);
+	}
+
+	private static void removePosting(ConcurrentHashMap<String, Set<Key>> index, String term, Key key) {
+		index.computeIfPresent(term, (t, posting) -> {
+			posting.remove(key);
+			return posting.isEmpty() ? null : posting;
+		});
+	}
+
+	/**
+	 * A consistent, read-only view of the store at one version. Reading it takes no locks and
+	 * writes committed after the snapshot was opened are not visible.
+	 */
+	public class Snapshot implements AutoCloseable {
+		private long snapshotVersion;
+		private boolean closed;
+
+		private Snapshot(long snapshotVersion) {
+			this.snapshotVersion = snapshotVersion;
+		}
+
+		public long getVersion() {
+			return snapshotVersion;
+		}
+
+		/**
+		 * The method looks up the resource with the channel and uri as of the snapshot.
+		 * @param channel
+		 * @param uri
+		 * @return the resource or null if there is none
+		 */
+		public Resource get(String channel, URI uri) {
+			return resolve(new Key(channel, uri));
+		}
+
+		/**
+		 * The method returns the resources that may match the query template, using the uri if it is
+		 * given and otherwise intersecting the channel, tag and name/description indexes, starting
+		 * from the smallest. The candidates still have to be checked with Resource.matches.
+		 * @param template
+		 * @return candidates
+		 */
+		public List<Resource> candidates(Resource template) {
+			List<Resource> candidates = new ArrayList<>();
+			if (!template.getUri().toString().equals("")) {
+				Resource resource = get(template.getChannel(), template.getUri());
+				if (resource != null) {
+					candidates.add(resource);
+				}
+				return candidates;
+			}
+			List<Set<Key>> postings = new ArrayList<>();
+			postings.add(channelIndex.get(template.getChannel()));
+			for (String tag : template.getLowerCaseTags()) {
+				postings.add(tagIndex.get(tag));
+			}
+			if (postings.contains(null)) return candidates;
+			Set<Key> textCandidates = textCandidates(template);
+			if (textCandidates != null) {
+				postings.add(textCandidates);
+			}
+			postings.sort(Comparator.comparingInt(Set::size));
+			Set<Key> smallest = postings.get(0);
+			List<Set<Key>> others = postings.subList(1, postings.size());
+			for (Key key : smallest) {
+				boolean inAll = true;
+				for (Set<Key> posting : others) {
+					if (!posting.contains(key)) {
+						inAll = false;
+						break;
+					}
+				}
+				if (!inAll) continue;
+				Resource resource = resolve(key);
+				if (resource != null) {
+					candidates.add(resource);
+				}
+			}
+			return candidates;
+		}
+
+		/**
+		 * The method returns every resource as of the snapshot.
+		 * @return resources
+		 */
+		public List<Resource> resources() {
+			List<Resource> resources = new ArrayList<>();
+			for (Key key : versions.keySet()) {
+				Resource resource = resolve(key);
+				if (resource != null) {
+					resources.add(resource);
+				}
+			}
+			return resources;
+		}
+
+		/**
+		 * The method finds the newest version of the key that is not newer than the snapshot.
+		 */
+		private Resource resolve(Key key) {
+			for (Version v = versions.get(key); v != null; v = v.previous) {
+				if (v.version <= snapshotVersion) return v.resource;
+			}
+			return null;
+		}
+
+		@Override
+		public void close() {
+			if (closed) return;
+			closed = true;
+			release(snapshotVersion);
+		}
+	}
+
+	/**
+	 * A write to the store: the resource stored at the channel and uri, or its removal.
+	 */
+	public static class Change {
+		private final long version;
+		private final Key key;
+		private final Resource resource;
+
+		private Change(long version, Key key, Resource resource) {
+			this.version = version;
+			this.key = key;
+			this.resource = resource;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public String getChannel() {
+			return key.channel;
+		}
+
+		public URI getUri() {
+			return key.uri;
+		}
+
+		/**
+		 * @return the resource written, or null if the resource was removed
+		 */
+		public Resource getResource() {
+			return resource;
+		}
+	}
+
+	/**
+	 * A version of a resource. Removing a resource writes a version without a resource.
+	 */
+	private static class Version {
+		private final Resource resource;
+		private final long version;
+		private volatile Version previous;
+
+		private Version(Resource resource, long version, Version previous) {
+			this.resource = resource;
+			this.version = version;
+			this.previous = previous;
+		}
+	}
+
+	/**
+	 * The primary key of a resource within the server.
+	 */
+	private static class Key {
+		private String channel;
+		private URI uri;
+
+		private Key(String channel, URI uri) {
+			this.channel = channel;
+			this.uri = uri;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key key = (Key) obj;
+			return channel.equals(key.channel) && uri.equals(key.uri);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * channel.hashCode() + uri.hashCode();
+		}
+	}
+}
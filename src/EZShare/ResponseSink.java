@@ -0,0 +1,16 @@
+/**
+ * The interface is for receiving the messages of a response while the command is still being
+ * processed, so that they can be sent to the client straight away.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+package EZShare;
+
+public interface ResponseSink {
+	/**
+	 * The method passes on a message of the response. A sink whose client has gone away
+	 * drops the message.
+	 * @param message
+	 */
+	void send(Message message);
+}
@@ -30,8 +30,32 @@ public class Server {
 		options.addOption("connectionintervallimit", true, "connection interval limit in seconds");
 		options.addOption("exchangeinterval", true, "exchange interval in seconds");
 		options.addOption("port", true, "server port, an integer");
+		options.addOption("relaydeadline", true, "time in seconds relayed queries wait for other servers");
+		options.addOption("timeoutmultiplier", true, "times the 99th percentile answer time of a server it is waited for");
+		options.addOption("minpeertimeout", true, "least time in seconds a server with known answer times is waited for");
+		options.addOption("maxpeertimeout", true, "most time in seconds a server with known answer times is waited for");
+		options.addOption("hedge", false, "ask another server of the overlay when a relayed server is slower than usual");
+		options.addOption("queuehighwater", true, "requests in progress before new ones are turned away");
+		options.addOption("relayhighwater", true, "requests in progress before queries relayed by other servers are turned away");
+		options.addOption("peerpoolsize", true, "idle connections kept open to each other server");
+		options.addOption("peermaxidle", true, "time in seconds an idle connection to another server is kept");
+		options.addOption("querycachesize", true, "number of query results cached, 0 turns the cache off");
+		options.addOption("querycachettl", true, "time in seconds query results from other servers are cached");
+		options.addOption("relaypruning", false, "leave servers whose resource summary has no match out of relays");
+		options.addOption("summarymaxage", true, "time in seconds the resource summary of another server is trusted");
+		options.addOption("federation", false, "answer relayed queries from copies of the resources of other servers");
+		options.addOption("federationmaxstaleness", true, "time in seconds a copy of another server's resources can answer queries");
+		options.addOption("phithreshold", true, "suspicion at which a failing server is evicted");
+		options.addOption("overlay", false, "know only a partial view of the servers and relay queries along it");
+		options.addOption("activeviewsize", true, "servers exchanged with and relayed to in the overlay");
+		options.addOption("passiveviewsize", true, "servers kept in reserve in the overlay");
+		options.addOption("overlayhops", true, "times a query is passed on along the overlay");
+		options.addOption("dnsttl", true, "time in seconds the address of a hostname is cached");
+		options.addOption("dnsnegativettl", true, "time in seconds a hostname that can't be resolved is cached");
 		options.addOption("secret", true, "secret");
 		options.addOption("debug", false, "print debug information");
+		options.addOption("nio", false, "use the non-blocking selector front end");
+		options.addOption("virtualthreads", false, "run each connection and relay on its own virtual thread");
 		
 		CommandLineParser parser = new DefaultParser();
 		CommandLine cmd = null;
@@ -67,6 +91,166 @@ public class Server {
 			}	
 		}
 		
+		if (cmd.hasOption("relaydeadline")) {
+			try {
+				ServerInfo.relayDeadline = Integer.parseInt(cmd.getOptionValue("relaydeadline"));
+			} catch (Exception e) {
+				logger.error("Relay deadline should be an integer. Using default relay deadline(sec): " + ServerInfo.relayDeadline);
+			}	
+		}
+		
+		if (cmd.hasOption("timeoutmultiplier")) {
+			try {
+				ServerInfo.timeoutMultiplier = Double.parseDouble(cmd.getOptionValue("timeoutmultiplier"));
+			} catch (Exception e) {
+				logger.error("Timeout multiplier should be a number. Using default timeout multiplier: " + ServerInfo.timeoutMultiplier);
+			}	
+		}
+		
+		if (cmd.hasOption("minpeertimeout")) {
+			try {
+				ServerInfo.minPeerTimeout = Integer.parseInt(cmd.getOptionValue("minpeertimeout"));
+			} catch (Exception e) {
+				logger.error("Min peer timeout should be an integer. Using default min peer timeout(sec): " + ServerInfo.minPeerTimeout);
+			}	
+		}
+		
+		if (cmd.hasOption("maxpeertimeout")) {
+			try {
+				ServerInfo.maxPeerTimeout = Integer.parseInt(cmd.getOptionValue("maxpeertimeout"));
+			} catch (Exception e) {
+				logger.error("Max peer timeout should be an integer. Using default max peer timeout(sec): " + ServerInfo.maxPeerTimeout);
+			}	
+		}
+		
+		if (cmd.hasOption("hedge")) {
+			ServerInfo.hedge = true;
+		}
+		
+		if (cmd.hasOption("queuehighwater")) {
+			try {
+				ServerInfo.queueHighWater = Integer.parseInt(cmd.getOptionValue("queuehighwater"));
+			} catch (Exception e) {
+				logger.error("Queue high water should be an integer. Using default queue high water: " + ServerInfo.queueHighWater);
+			}	
+		}
+		
+		if (cmd.hasOption("relayhighwater")) {
+			try {
+				ServerInfo.relayHighWater = Integer.parseInt(cmd.getOptionValue("relayhighwater"));
+			} catch (Exception e) {
+				logger.error("Relay high water should be an integer. Using default relay high water: " + ServerInfo.relayHighWater);
+			}	
+		}
+		
+		if (cmd.hasOption("peerpoolsize")) {
+			try {
+				ServerInfo.peerPoolSize = Integer.parseInt(cmd.getOptionValue("peerpoolsize"));
+			} catch (Exception e) {
+				logger.error("Peer pool size should be an integer. Using default peer pool size: " + ServerInfo.peerPoolSize);
+			}	
+		}
+		
+		if (cmd.hasOption("peermaxidle")) {
+			try {
+				ServerInfo.peerMaxIdle = Integer.parseInt(cmd.getOptionValue("peermaxidle"));
+			} catch (Exception e) {
+				logger.error("Peer max idle should be an integer. Using default peer max idle(sec): " + ServerInfo.peerMaxIdle);
+			}	
+		}
+		
+		if (cmd.hasOption("querycachesize")) {
+			try {
+				ServerInfo.queryCacheSize = Integer.parseInt(cmd.getOptionValue("querycachesize"));
+			} catch (Exception e) {
+				logger.error("Query cache size should be an integer. Using default query cache size: " + ServerInfo.queryCacheSize);
+			}	
+		}
+		
+		if (cmd.hasOption("querycachettl")) {
+			try {
+				ServerInfo.queryCacheTtl = Integer.parseInt(cmd.getOptionValue("querycachettl"));
+			} catch (Exception e) {
+				logger.error("Query cache ttl should be an integer. Using default query cache ttl(sec): " + ServerInfo.queryCacheTtl);
+			}	
+		}
+		
+		if (cmd.hasOption("relaypruning")) {
+			ServerInfo.relayPruning = true;
+		}
+		
+		if (cmd.hasOption("summarymaxage")) {
+			try {
+				ServerInfo.summaryMaxAge = Integer.parseInt(cmd.getOptionValue("summarymaxage"));
+			} catch (Exception e) {
+				logger.error("Summary max age should be an integer. Using default summary max age(sec): " + ServerInfo.summaryMaxAge);
+			}	
+		}
+		
+		if (cmd.hasOption("federation")) {
+			ServerInfo.federation = true;
+		}
+		
+		if (cmd.hasOption("federationmaxstaleness")) {
+			try {
+				ServerInfo.federationMaxStaleness = Integer.parseInt(cmd.getOptionValue("federationmaxstaleness"));
+			} catch (Exception e) {
+				logger.error("Federation max staleness should be an integer. Using default federation max staleness(sec): " + ServerInfo.federationMaxStaleness);
+			}	
+		}
+		
+		if (cmd.hasOption("phithreshold")) {
+			try {
+				ServerInfo.phiThreshold = Double.parseDouble(cmd.getOptionValue("phithreshold"));
+			} catch (Exception e) {
+				logger.error("Phi threshold should be a number. Using default phi threshold: " + ServerInfo.phiThreshold);
+			}	
+		}
+		
+		if (cmd.hasOption("overlay")) {
+			ServerInfo.overlay = true;
+		}
+		
+		if (cmd.hasOption("activeviewsize")) {
+			try {
+				ServerInfo.activeViewSize = Integer.parseInt(cmd.getOptionValue("activeviewsize"));
+			} catch (Exception e) {
+				logger.error("Active view size should be an integer. Using default active view size: " + ServerInfo.activeViewSize);
+			}	
+		}
+		
+		if (cmd.hasOption("passiveviewsize")) {
+			try {
+				ServerInfo.passiveViewSize = Integer.parseInt(cmd.getOptionValue("passiveviewsize"));
+			} catch (Exception e) {
+				logger.error("Passive view size should be an integer. Using default passive view size: " + ServerInfo.passiveViewSize);
+			}	
+		}
+		
+		if (cmd.hasOption("overlayhops")) {
+			try {
+				ServerInfo.overlayHops = Integer.parseInt(cmd.getOptionValue("overlayhops"));
+			} catch (Exception e) {
+				logger.error("Overlay hops should be an integer. Using default overlay hops: " + ServerInfo.overlayHops);
+			}	
+		}
+		
+		if (cmd.hasOption("dnsttl")) {
+			try {
+				ServerInfo.dnsTtl = Integer.parseInt(cmd.getOptionValue("dnsttl"));
+			} catch (Exception e) {
+				logger.error("DNS ttl should be an integer. Using default DNS ttl(sec): " + ServerInfo.dnsTtl);
+			}	
+		}
+		
+		if (cmd.hasOption("dnsnegativettl")) {
+			try {
+				ServerInfo.dnsNegativeTtl = Integer.parseInt(cmd.getOptionValue("dnsnegativettl"));
+			} catch (Exception e) {
+				logger.error("DNS negative ttl should be an integer. Using default DNS negative ttl(sec): " + ServerInfo.dnsNegativeTtl);
+			}	
+		}
+		
 		if (cmd.hasOption("port")) {
 			int port = Integer.parseInt(cmd.getOptionValue("port"));
 			if (port < 0 || port > 65535) {
@@ -79,6 +263,12 @@ public class Server {
 		if (cmd.hasOption("secret")) {
 			ServerInfo.secret = cmd.getOptionValue("secret");
 		}
+		if (cmd.hasOption("nio")) {
+			ServerInfo.nio = true;
+		}
+		if (cmd.hasOption("virtualthreads")) {
+			ServerInfo.virtualThreads = true;
+		}
 		// if the user sets debug mode on, it will set the logger level to DEBUG
 		// and print out all debug information
 		if (cmd.hasOption("debug")) {
@@ -1,6 +1,7 @@
 /**
  * The class is to store information of the server. It includes hostname, port number
- * and IP address.
+ * and IP address. The address is resolved lazily through the HostResolver cache, so creating a
+ * server never waits for DNS.
  * @author Sheng Wu
  * @version 1.0 29/04/2017
  */
@@ -13,19 +14,36 @@ public class ServerBean {
 	private String hostname;
 	private int port;
 	private InetAddress address;
+	private String key;
 	
 	public ServerBean(String hostname, int port){
 		this.hostname = hostname;
 		this.port = port;
-		try {
-			this.address = InetAddress.getByName(hostname);
-		} catch (UnknownHostException e) {
-			e.printStackTrace();
-		}
+		this.key = key();
 	}
 
+	/**
+	 * The method returns the address without blocking.
+	 * @return the address, or null if it isn't resolved yet or can't be resolved
+	 */
 	public InetAddress getAddress() {
-		return address;
+		return address != null ? address : HostResolver.lookup(hostname);
+	}
+
+	/**
+	 * The method returns the address to connect to, looking the hostname up if it isn't cached.
+	 * @return the address
+	 * @throws UnknownHostException if the hostname can't be resolved
+	 */
+	public InetAddress resolve() throws UnknownHostException {
+		return address != null ? address : HostResolver.resolve(hostname);
+	}
+
+	/**
+	 * @return false if the hostname is known not to resolve, true if it resolves or isn't looked up yet
+	 */
+	public boolean isResolvable() {
+		return address != null || !HostResolver.isUnresolvable(hostname);
 	}
 
 	public int getPort() {
@@ -38,23 +56,49 @@ public class ServerBean {
 
 	public void setPort(int port) {
 		this.port = port;
+		this.key = key();
 	}
 
 	public void setHostname(String hostname) {
 		this.hostname = hostname;
+		this.key = key();
 	}
 	
 	public void setAddress(InetAddress address) {
 		this.address = address;
+		this.key = key();
+	}
+
+	/**
+	 * The method returns the key of the server in maps, the address and port, so different
+	 * hostnames of the same server share a key. The key is fixed when the server is created, so
+	 * it doesn't change while the server is in a map: a hostname which isn't resolved by then
+	 * keeps the hostname and port as its key (see HostResolver). The server table follows
+	 * hostnames to their current address itself (see ServerTable).
+	 * @return key
+	 */
+	public String getKey() {
+		return key;
+	}
+
+	private String key() {
+		return (address == null ? HostResolver.key(hostname) : address.getHostAddress()) + ":" + port;
 	}
 
 	public String toString() {
 		return this.hostname + ":" + this.port;
 	}
  
+	/**
+	 * Two servers are equal if they have the same address and port, or the same hostname and
+	 * port if they can't be resolved.
+	 */
 	public boolean equals(Object obj) {
 		if (!(obj instanceof ServerBean)) return false;
-		ServerBean serverBean = (ServerBean) obj;
-		return this.address.equals(serverBean.getAddress()) && this.port == serverBean.getPort();
+		return getKey().equals(((ServerBean) obj).getKey());
+	}
+
+	public int hashCode() {
+		return getKey().hashCode();
 	}
 }
\ No newline at end of file
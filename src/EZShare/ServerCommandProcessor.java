@@ -7,19 +7,29 @@
 package EZShare;
 
 import java.io.File;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import org.apache.log4j.Logger;
-import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException; 
-import org.apache.wink.json4j.JSONObject;
 
 public class ServerCommandProcessor { 
 	private ServerCore core;
 	private static ServerCommandProcessor processor;
 	private static Logger logger = Logger.getLogger(ServerCommandProcessor.class);
+	private static final String SUCCESS = "{\"response\":\"success\"}";
+	// how much sooner than the deadline of a query a server it is passed on to has to answer, so
+	// the answer gets back in time
+	private static final int RELAY_MARGIN = 2000;  //milliseconds
 	
 	/**
 	 * The method is the construction method and gets the server list and resource list.
@@ -52,312 +62,463 @@ public class ServerCommandProcessor {
 	 */
 	public List<Message> processCommand(String command) {
 		List<Message> messages = new ArrayList<Message>();
+		processCommand(command, null, messages::add);
+		return messages;
+	}
+
+	/**
+	 * The method process the command the client sends and passes the messages of the response to
+	 * the sink as soon as they are ready, so query results can be sent while the query goes on.
+	 * @param command a json string
+	 * @param origin the address the command came from, null if it isn't known
+	 * @param sink receives the messages of the response
+	 */
+	public void processCommand(String command, InetAddress origin, ResponseSink sink) {
+		Command cmd;
 		try {
-			JSONObject jsonObject = new JSONObject(command); 
-			String cmd = jsonObject.getString("command");
-			switch (cmd) {
-			case "PUBLISH": 
-				messages.addAll(publish(jsonObject));
-				break;
-			case "REMOVE": 
-				messages.addAll(remove(jsonObject));
-				break;
-			case "SHARE":
-				messages.addAll(share(jsonObject));
-				break;
-			case "QUERY":
-				messages.addAll(query(jsonObject));
-				break;
-			case "FETCH":
-				messages.addAll(fetch(jsonObject));
-				break;
-			case "EXCHANGE":
-				messages.addAll(exchange(jsonObject));
-				break;
-			default:
-				messages.addAll(sendErrorMessage("Invalid Command"));
-			}
+			cmd = Command.parse(command);
 		} catch (JSONException e) { 
-			return sendErrorMessage("missing or incorrect type for command");
-		} finally {
-			return messages;
-		}	
+			sendAll(sink, sendErrorMessage("missing or incorrect type for command"));
+			return;
+		}
+		AdmissionControl admission = core.getAdmissionControl();
+		if (isSubQuery(cmd) && admission.shedRelayed()) {
+			// the server that relayed the query gives up on this server rather than on its clients
+			sink.send(new Message(admission.busyMessage(core.getServerConnection().getConcurrency())));
+			return;
+		}
+		long start = System.currentTimeMillis();
+		switch (cmd.getCommand()) {
+		case "PUBLISH": 
+			sendAll(sink, publish(cmd));
+			break;
+		case "REMOVE": 
+			sendAll(sink, remove(cmd));
+			break;
+		case "SHARE":
+			sendAll(sink, share(cmd));
+			break;
+		case "QUERY":
+			query(cmd, sink);
+			break;
+		case "FETCH":
+			sendAll(sink, fetch(cmd));
+			break;
+		case "EXCHANGE":
+			sendAll(sink, exchange(cmd, origin));
+			break;
+		case "STATS":
+			sendAll(sink, stats());
+			break;
+		default:
+			sendAll(sink, sendErrorMessage("Invalid Command"));
+		}
+		admission.processed(System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * @param cmd
+	 * @return true if the command is a query relayed by another server, which always sends a query id
+	 */
+	private static boolean isSubQuery(Command cmd) {
+		return "QUERY".equals(cmd.getCommand()) && (cmd.getQueryId() != null || cmd.getHops() != null);
+	}
+
+	private static void sendAll(ResponseSink sink, List<Message> messages) {
+		for (Message message : messages) {
+			sink.send(message);
+		}
 	}
 
 	/**
 	 * The method deal with the publish command and sends back the response.
-	 * @param jsonObject
+	 * @param cmd
 	 * @return messages List<Message>
 	 */
-	private synchronized List<Message> publish(JSONObject jsonObject) {
-		if (!jsonObject.has("resource")) 
-			return sendErrorMessage("missing resource");
-		JSONObject resourceObject = null;
-		try {
-			resourceObject = jsonObject.getJSONObject("resource");
-		} catch (JSONException e) { 
-			e.printStackTrace();
-		}
-		if (!Resource.checkValidity(resourceObject)) 
+	private List<Message> publish(Command cmd) {
+		if (!cmd.hasResource() || !cmd.isResourceComplete()) 
 			return sendErrorMessage("missing resource");
-		Resource resource = Resource.parseJson(resourceObject);
-		if (resource==null|| resource.getOwner().equals("*"))
+		Resource resource = cmd.getResource();
+		if (resource.getOwner().equals("*"))
 			return sendErrorMessage("invalid resource");
 		if (!resource.getUri().isAbsolute() || resource.getUri().getScheme().equals("file"))
 			return sendErrorMessage("cannot publish resource");
-		List<Resource> resources = core.getResources();
-		if(resources.stream().anyMatch(re->re.getChannel().equals(resource.getChannel())&&re.getUri().equals(resource.getUri())&&!re.getOwner().equals(resource.getOwner())))
+		if (!core.getResources().put(resource))
 			return sendErrorMessage("cannot publish resource");
-		List<Resource> sameResource = resources.stream().filter(re -> re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri()) && re.getOwner().equals(resource.getOwner())).collect(Collectors.toList());
-		if (sameResource.size() > 0){
-			resources.set(resources.indexOf(sameResource.get(0)), resource);
-		} else {
-			resources.add(resource);
-		}
-		resources.forEach(re-> logger.debug("Published resource: " + Resource.toJson(re).toString()));  
+		logger.debug("Published resource: " + ResourceCodec.toJson(resource));
 		return sendSuccessMessage();
 	}
 	
 	/**
 	 * The method deal with the remove command and sends back the response.
-	 * @param jsonObject
+	 * @param cmd
 	 * @return messages List<Message>
 	 */
-	private synchronized List<Message> remove(JSONObject jsonObject) {
-		if (!jsonObject.has("resource"))
+	private List<Message> remove(Command cmd) {
+		if (!cmd.hasResource() || !cmd.isResourceComplete())
 			return sendErrorMessage("missing resource");
-		JSONObject resourceObject = null;
-		try {
-			resourceObject = jsonObject.getJSONObject("resource");
-		} catch (JSONException e) { 
-			e.printStackTrace();
-		}
-		if (!Resource.checkValidity(resourceObject))
-			return sendErrorMessage("missing resource");
-		Resource resource = Resource.parseJson(resourceObject);
-		if (resource == null || resource.getOwner().equals("*"))
+		Resource resource = cmd.getResource();
+		if (resource.getOwner().equals("*"))
 			return sendErrorMessage("invalid resource");
 		if ( !resource.getUri().isAbsolute())
 			return sendErrorMessage("cannot remove resource");
-		List<Resource> resources = core.getResources();
-		List<Resource> targetList = resources.stream().filter(re -> re.getOwner().equals(resource.getOwner()) && re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri())).collect(Collectors.toList());
-		if (targetList.size()==0)
+		if (!core.getResources().remove(resource))
 			return sendErrorMessage("cannot remove resource");
-		resources.remove(targetList.get(0));
-		resources.forEach(re -> logger.debug("Remove" + Resource.toJson(re).toString()));
+		logger.debug("Removed resource: " + ResourceCodec.toJson(resource));
 		return sendSuccessMessage();
 	}
 
 	/**
 	 * The method deal with the share command and sends back the response.
-	 * @param jsonObject
+	 * @param cmd
 	 * @return messages List<Message>
 	 */
-	private synchronized List<Message> share(JSONObject jsonObject) {
-		if (!jsonObject.has("resource")||!jsonObject.has("secret"))
+	private List<Message> share(Command cmd) {
+		if (!cmd.hasResource() || cmd.getSecret() == null)
 			return sendErrorMessage("missing resource and/or secret");
-		try {
-			if(!jsonObject.getString("secret").equals(ServerInfo.secret))
-				return sendErrorMessage("incorrect secret");
-		} catch (JSONException e) {
-			e.printStackTrace();
-		}
-		JSONObject resourceObject = null;
-		try {
-			resourceObject = jsonObject.getJSONObject("resource");
-		} catch (JSONException e) { 
-			e.printStackTrace();
-		}
-		if (!Resource.checkValidity(resourceObject))
+		if (!cmd.getSecret().equals(ServerInfo.secret))
+			return sendErrorMessage("incorrect secret");
+		if (!cmd.isResourceComplete())
 			return sendErrorMessage("missing resource");
-		Resource resource = Resource.parseJson(resourceObject);
+		Resource resource = cmd.getResource();
 		resource.setServerBean(core.getMyServer());
-		if (resource == null || resource.getOwner().equals("*"))
+		if (resource.getOwner().equals("*"))
 			return sendErrorMessage("invalid resource");
 		if (!resource.getUri().isAbsolute() || !resource.getUri().getScheme().equals("file")||resource.getUri().getAuthority()!=null)
 			return sendErrorMessage("cannot share resource");
 		File file = new File(resource.getUri().getPath());
 		if (!file.exists()||!file.isFile()) 
 			return sendErrorMessage("cannot share resource");
-		List<Resource> resources = core.getResources();
-		if (resources.stream().anyMatch(re -> re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri()) && !re.getOwner().equals(resource.getOwner())))
+		if (!core.getResources().put(resource))
 			return sendErrorMessage("cannot share resource");
-		List<Resource> sameResource = resources.stream().filter(re -> re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri()) && re.getOwner().equals(resource.getOwner())).collect(Collectors.toList());
-		if (sameResource.size() > 0) {
-			resources.set(resources.indexOf(sameResource.get(0)), resource);
-		} else {
-			resources.add(resource);
-		}
-		resources.forEach(re -> logger.debug("Shared rescource" + Resource.toJson(re).toString()));
+		logger.debug("Shared resource: " + ResourceCodec.toJson(resource));
 		return sendSuccessMessage();
 	}
 
 	/**
 	 * The method deal with the query command (if relay == true, the server will propagate the command to other servers and 
-	 * set relay field to false, owner and channel to "") then sends back the response.
-	 * @param jsonObject
-	 * @return messages List<Message>
+	 * set relay field to false, owner and channel to "") then sends back the response. Local results are sent
+	 * straight away and relayed results as each server answers, the result size comes last.
+	 * With the overlay on, the query is only relayed to the active view, which passes it on
+	 * until it runs out of hops, and each server answers only the first copy of it. Each copy
+	 * carries the time left until the deadline of the server that passed it on, less a margin,
+	 * so a server relays it only as long as its answer can still be waited for.
+	 * @param cmd
+	 * @param sink receives the messages of the response
 	 */
-	private synchronized List<Message> query(JSONObject jsonObject){
-		List<Message> messages = new ArrayList<>();
-		if (!jsonObject.has("resourceTemplate")||!jsonObject.has("relay"))
-			return sendErrorMessage("missing resourceTemplate");
-		boolean relay = true;
-		try {
-			relay = jsonObject.getBoolean("relay");
-		} catch (JSONException e1) { 
-			e1.printStackTrace();
-		} 
-		JSONObject resourceObject = null;
-		try {
-			resourceObject = jsonObject.getJSONObject("resourceTemplate");
-		} catch (JSONException e1) { 
-			e1.printStackTrace();
+	private void query(Command cmd, ResponseSink sink){
+		if (!cmd.hasResourceTemplate() || cmd.getRelay() == null || !cmd.isTemplateComplete()) {
+			sendAll(sink, sendErrorMessage("missing resourceTemplate"));
+			return;
 		}
-		if (!Resource.checkValidity(resourceObject)) 
-			return sendErrorMessage("missing resourceTemplate");
-		Resource resource = Resource.parseJson(resourceObject);
-		if (resource==null|| resource.getOwner().equals("*"))
-			return sendErrorMessage("invalid resourceTemplate");
-		List<Resource> resources = core.getResources();
-		List<Resource> candidates = new ArrayList<>();
-		synchronized (resources){ 
-			for (Resource re : resources){
-				List<String> queryTags = new ArrayList<>();
-				for (String tag : re.getTags()) {
-					tag = tag.toLowerCase();
-					queryTags.add(tag);
+		boolean relay = cmd.getRelay();
+		Resource resource = cmd.getResourceTemplate();
+		if (resource.getOwner().equals("*")) {
+			sendAll(sink, sendErrorMessage("invalid resourceTemplate"));
+			return;
+		}
+		sendAll(sink, sendSuccessMessage());
+		// queries from clients get an id and the full hops, copies from other servers bring theirs
+		int hops = cmd.getHops() == null ? ServerInfo.overlayHops : cmd.getHops();
+		String queryId = cmd.getQueryId() == null ? UUID.randomUUID().toString() : cmd.getQueryId();
+		if (ServerInfo.overlay && relay && !core.getOverlay().firstSeen(queryId)) {
+			// another copy of the query got here first
+			sink.send(new Message(MessageType.STRING, "{\"resultSize\":0}", null, null));
+			return;
+		}
+		// a copy from the overlay is not relayed to every server by a server outside it
+		if (ServerInfo.overlay ? hops <= 0 : cmd.getHops() != null) {
+			relay = false;
+		}
+		// a copy from the overlay is relayed within the time the server that passed it on has left
+		long relayTime = ServerInfo.relayDeadline * 1000L;
+		if (cmd.getTimeLeft() != null) {
+			relayTime = Math.min(relayTime, cmd.getTimeLeft());
+		}
+		if (relayTime <= 0) {
+			relay = false;
+		}
+		// whether the servers asked pass the query on, so their own resources are not all they answer for
+		boolean passedOn = ServerInfo.overlay && hops > 1;
+		AtomicInteger resultSize = new AtomicInteger();
+		QueryCache cache = core.getQueryCache();
+		List<Message> localResults = cache.getLocal(core.getResources(), resource);
+		if (localResults == null) {
+			long[] stamp = cache.stamp(core.getResources(), resource);
+			localResults = new ArrayList<>();
+			ServerBean myServer = core.getMyServer();
+			// the results are sent after the snapshot is closed, so a slow client doesn't hold it open
+			try (ResourceStore.Snapshot snapshot = core.getResources().snapshot()) {
+				for (Resource re : snapshot.candidates(resource)) {
+					if (!re.matches(resource)) continue;
+					localResults.add(ResourceCodec.publicMessage(re, myServer));
 				}
-				if (resource.getChannel().equals(re.getChannel()) && 
-						((resource.getOwner().equals("") || resource.getOwner().equals(re.getOwner()))) &&
-						((resource.getTags().size() == 0 || resource.getTags().stream().map(s -> s.toLowerCase()).allMatch(tag -> queryTags.contains(tag)))) &&
-						((resource.getUri().toString().equals("") || resource.getUri().equals(re.getUri()))) &&
-						( (resource.getName().equals("") && resource.getDescription().equals("")) ||
-								(!resource.getName().equals("") && re.getName().contains(resource.getName()) ) ||
-								(!resource.getDescription().equals("") && re.getDescription().contains(resource.getDescription())) )) {
-							try {
-								Resource candidateResource = re.clone();
-								if (!candidateResource.getOwner().equals(""))
-									candidateResource.setOwner("*");
-								candidateResource.setServerBean(core.getMyServer());
-								candidates.add(candidateResource);
-							} catch (CloneNotSupportedException e) {
-								e.printStackTrace();
-							}
-						}
 			}
+			cache.putLocal(resource, stamp, localResults);
 		}
+		sendAll(sink, localResults);
+		resultSize.addAndGet(localResults.size());
+		List<ServerBean> failedServers = new ArrayList<>();
+		List<ServerBean> unansweredServers = new ArrayList<>();
 		if (relay) {
-			List<ServerBean> serverBeans = core.getServerList();
-			for (ServerBean serverBean : serverBeans){
-				if (serverBean.equals(core.getMyServer())) continue; 
-				try {
-					jsonObject.put("relay", false);
-					JSONObject templateObject = (JSONObject)jsonObject.get("resourceTemplate");
-					templateObject.put("owner","");
-					templateObject.put("channel","");
-				} catch (JSONException e1) { 
-					e1.printStackTrace();
-				} 
-				List<Message> results = core.getServerConnection().establishConnection(serverBean, new Message(MessageType.STRING, jsonObject.toString(), null, null));
-				if (results == null || results.size() == 0) continue;
-				results.forEach(result -> {
-					JSONObject resultObject = null;
-					try {
-						resultObject = new JSONObject(result.getMessage());
-					} catch (JSONException e) { 
-						e.printStackTrace();
+			resource.setOwner("");
+			resource.setChannel("");
+			// servers which failed just now are not asked, and count as failed
+			List<ServerBean> serverBeans = core.getServers().relayTargets(failedServers);
+			if (ServerInfo.federation && !passedOn) {
+				// servers with a recent copy in the federated index are answered locally
+				List<Message> indexResults = new ArrayList<>();
+				serverBeans.removeIf(serverBean -> core.getFederatedIndex().query(serverBean, resource, indexResults));
+				sendAll(sink, indexResults);
+				resultSize.addAndGet(indexResults.size());
+			}
+			// servers whose summary proves they have no match are not asked
+			if (!passedOn) {
+				serverBeans.removeIf(serverBean -> !core.getPeerSummaries().mayMatch(serverBean, resource));
+			}
+			// results along the overlay depend on which copy of the query got where first, so they are not cached
+			List<Message> relayedResults = serverBeans.isEmpty() ? new ArrayList<>()
+					: ServerInfo.overlay ? null : cache.getRelayed(resource, serverBeans);
+			if (relayedResults != null) {
+				sendAll(sink, relayedResults);
+				resultSize.addAndGet(relayedResults.size());
+			} else {
+				List<Message> results = new ArrayList<>();
+				long start = System.currentTimeMillis();
+				long deadline = start + relayTime;
+				String relayCommand = ServerInfo.overlay ? Command.query(resource, hops - 1, queryId, relayTime - RELAY_MARGIN)
+						: Command.query(resource, queryId);
+				Message relayMessage = new Message(MessageType.STRING, relayCommand, null, null);
+				// along the overlay a slow server can be hedged with a server of the passive view, which
+				// passes the query on as well. Every other server is asked already outside the overlay.
+				Set<ServerBean> hedges = ConcurrentHashMap.newKeySet();
+				// servers that lost a hedged race are not held to have failed
+				Set<ServerBean> hedged = ConcurrentHashMap.newKeySet();
+				Function<ServerBean, ServerBean> alternate = !(ServerInfo.hedge && ServerInfo.overlay) ? null : slow -> {
+					List<ServerBean> asked = new ArrayList<>(serverBeans);
+					asked.addAll(hedges);
+					ServerBean hedge = core.getOverlay().alternate(asked,
+							serverBean -> passedOn || core.getPeerSummaries().mayMatch(serverBean, resource));
+					if (hedge != null) {
+						hedges.add(hedge);
+						hedged.add(slow);
+					}
+					return hedge;
+				};
+				// a server that passes the query on is silent while it waits for its own relays, which
+				// end a margin before this deadline, so it is waited for up to the deadline
+				int minTimeout = passedOn ? (int) relayTime : 0;
+				List<ServerBean> lateServers = core.getServerConnection().establishConnections(serverBeans, relayMessage, deadline, minTimeout, alternate, (serverBean, messages) -> {
+					if (messages.size() == 0 && hedges.contains(serverBean)) return;
+					if (messages.size() == 0 && hedged.contains(serverBean)) {
+						unansweredServers.add(serverBean);
+						return;
+					}
+					if (messages.size() > 0 && AdmissionControl.isBusy(messages.get(0).getMessage())) {
+						// a busy server is healthy, it just didn't answer this time
+						if (!hedges.contains(serverBean)) unansweredServers.add(serverBean);
+						return;
 					}
-					if (Resource.checkValidity(resultObject)) {
-						Resource externalResource = Resource.parseJson(resultObject);
-						candidates.add(externalResource);
+					if (messages.size() == 0) {
+						failedServers.add(serverBean);
+						core.contactFailed(serverBean);
+						return;
 					}
+					core.getServers().reachable(serverBean, System.currentTimeMillis() - start);
+					messages.forEach(message -> {
+						Resource externalResource = ResourceCodec.parse(message.getMessage());
+						if (externalResource != null) {
+							String json = ResourceCodec.toJson(externalResource);
+							Message result = new Message(json, json.getBytes(StandardCharsets.US_ASCII));
+							sink.send(result);
+							results.add(result);
+							resultSize.incrementAndGet();
+						}
+					});
 				});
+				unansweredServers.addAll(lateServers);
+				if (!ServerInfo.overlay && failedServers.isEmpty() && unansweredServers.isEmpty()) {
+					cache.putRelayed(resource, serverBeans, results);
+				}
 			}
 		}
-		messages.addAll(sendSuccessMessage());
-		candidates.forEach(candidate->{
-			messages.add(new Message(MessageType.STRING, Resource.toJson(candidate).toString(),null,null));
-		});
-		messages.add(new Message(MessageType.STRING, "{\"resultSize\":" + candidates.size() + "}",null,null));
-		return messages;
+		sink.send(new Message(MessageType.STRING, resultSizeMessage(resultSize.get(), failedServers, unansweredServers),null,null));
+	}
+
+	/**
+	 * The method builds the message which ends the results of a query. Relayed servers which
+	 * failed or didn't answer before the deadline, or were too busy to, are listed so the client
+	 * knows the results may be incomplete.
+	 * @param resultSize the number of results
+	 * @param failedServers servers whose connection failed
+	 * @param lateServers servers which didn't answer before the deadline or were busy
+	 * @return the message as a json string
+	 */
+	private static String resultSizeMessage(int resultSize, List<ServerBean> failedServers, List<ServerBean> lateServers) {
+		StringBuilder builder = new StringBuilder("{\"resultSize\":").append(resultSize);
+		if (failedServers.size() > 0)
+			appendServers(builder, "failedServers", failedServers);
+		if (lateServers.size() > 0)
+			appendServers(builder, "lateServers", lateServers);
+		return builder.append('}').toString();
+	}
+
+	private static void appendServers(StringBuilder builder, String name, List<ServerBean> serverBeans) {
+		builder.append(",\"").append(name).append("\":[");
+		for (int i = 0; i < serverBeans.size(); i++) {
+			if (i > 0) builder.append(',');
+			ResourceCodec.writeString(builder, serverBeans.get(i).toString());
+		}
+		builder.append(']');
 	}
 
 	/**
 	 * The method deal with the fetch command and sends back the response and file if existed.
-	 * @param jsonObject
+	 * @param cmd
 	 * @return messages List<Message>
 	 */
-	private List<Message> fetch(JSONObject jsonObject){
+	private List<Message> fetch(Command cmd){
 		List<Message> messages = new ArrayList<>();
-		if (!jsonObject.has("resourceTemplate")) 
-			return sendErrorMessage("missing resourceTemplate");
-		JSONObject resourceObject = null;
-		try {
-			resourceObject = jsonObject.getJSONObject("resourceTemplate");
-		} catch (JSONException e) { 
-			e.printStackTrace();
-		}
-		if (!Resource.checkValidity(resourceObject)) 
+		if (!cmd.hasResourceTemplate() || !cmd.isTemplateComplete()) 
 			return sendErrorMessage("missing resourceTemplate");
-		Resource resource=Resource.parseJson(resourceObject);
-		if (resource == null || !resource.getUri().isAbsolute() || !resource.getUri().getScheme().equals("file") || resource.getUri().getAuthority() != null || resource.getOwner().equals("*"))
+		Resource resource = cmd.getResourceTemplate();
+		if (!resource.getUri().isAbsolute() || !resource.getUri().getScheme().equals("file") || resource.getUri().getAuthority() != null || resource.getOwner().equals("*"))
 			return sendErrorMessage("invalid resourceTemplate");
-		List<Resource> resources = core.getResources();
-		List<Resource> targetList = resources.stream().filter(re -> re.getChannel().equals(resource.getChannel()) && re.getUri().equals(resource.getUri())).collect(Collectors.toList());
-		if (targetList.size() == 0)
+		if (core.getResources().get(resource.getChannel(), resource.getUri()) == null)
 			return sendErrorMessage("uri or channel doesn't correspond");
 		File file = new File(resource.getUri().getPath());
 		if (!file.exists()||!file.isFile())
 			return sendErrorMessage("resource doesn't exist");
+		// an optional range lets clients resume or split downloads
+		boolean ranged = cmd.getOffset() != null || cmd.getLength() != null;
+		long offset = cmd.getOffset() == null ? 0 : cmd.getOffset();
+		long length = cmd.getLength() == null ? -1 : cmd.getLength();
+		if (offset < 0 || offset > file.length())
+			return sendErrorMessage("invalid range");
+		if (length < 0 || length > file.length() - offset)
+			length = file.length() - offset;
 		resource.setOwner("*");
 		resource.setSize(file.length());
 		resource.setServerBean(core.getMyServer());
-		resourceObject = Resource.toJson(resource);
+		StringBuilder resourceJson = new StringBuilder(256);
+		ResourceCodec.write(resourceJson, resource, resource.getOwner(), resource.getServerBean());
+		if (ranged) {
+			resourceJson.setLength(resourceJson.length() - 1);
+			resourceJson.append(",\"offset\":").append(offset).append(",\"length\":").append(length).append('}');
+		}
+		Message fileMessage = new Message(MessageType.FILE,null,null,file);
+		fileMessage.setOffset(offset);
+		fileMessage.setLength(length);
 		messages.addAll(sendSuccessMessage());
-		messages.add(new Message(MessageType.STRING,Resource.toJson(resource).toString(),null,null));
-		messages.add(new Message(MessageType.FILE,null,null,file));
+		messages.add(new Message(MessageType.STRING,resourceJson.toString(),null,null));
+		messages.add(fileMessage);
 		messages.add(new Message(MessageType.STRING,"{\"resultSize\":1}",null,null));
 		return messages;
 	}
 
 	/**
 	 * The method deal with the exchange command and sends back the response.
-	 * @param jsonObject
+	 * @param cmd
+	 * @param origin the address the command came from
 	 * @return messages List<Message>
 	 */
-	private synchronized List<Message> exchange(JSONObject jsonObject) {
-		if (!jsonObject.has("serverList"))
+	private List<Message> exchange(Command cmd, InetAddress origin) {
+		Membership.Update update = cmd.getMembership();
+		List<ServerBean> shuffle = cmd.getShuffle();
+		if (cmd.getServerList() == null && update == null && shuffle == null)
 			return sendErrorMessage("missing or invalid server list");
-		JSONArray serverArray = null;
-		try {
-			serverArray = jsonObject.getJSONArray("serverList");
-		} catch (JSONException e) { 
-			e.printStackTrace();
-		}
-		for (int i = 0; i < serverArray.length(); i++) {
-			JSONObject serverObject = null;
-			try {
-				serverObject = serverArray.getJSONObject(i);
-			} catch (JSONException e) { 
-				e.printStackTrace();
-			}
-			if (!serverObject.has("hostname")||!serverObject.has("port")) continue;
-			String hostname = "";
-			int port = 3000;
-			try {
-				hostname = serverObject.getString("hostname");
-				port = serverObject.getInt("port");
-			} catch (JSONException e) {
-				e.printStackTrace();
+		if (ServerInfo.overlay) {
+			// only a partial view is kept, so membership is not merged
+			update = null;
+			if (cmd.getServerList() != null) {
+				core.getOverlay().join(cmd.getServerList());
 			}
-			ServerBean serverBean = new ServerBean(hostname, port);
-			if (!core.getServerList().contains(serverBean) && !serverBean.equals(core.getMyServer())) {
-				core.getServerList().add(serverBean);
+		} else if (update == null) {
+			if (cmd.getServerList() == null)
+				return sendErrorMessage("missing or invalid server list");
+			// a server or client that only knows the server list
+			core.getMembership().mergeServerList(cmd.getServerList());
+			logger.debug("RECEIVED : " + cmd.getServerList());
+		} else if (update.getEntries() != null) {
+			core.getMembership().merge(update.getEntries()).forEach(core::serverDied);
+		}
+		List<ServerBean> sample = null;
+		if (ServerInfo.overlay && shuffle != null && !shuffle.isEmpty()) {
+			// the sender comes first in its shuffle
+			sample = core.getOverlay().sample();
+			core.getOverlay().merge(shuffle, sample);
+			core.getOverlay().neighbour(shuffle.get(0));
+		}
+		// summaries are only kept and sent back if relays are pruned by them
+		boolean summary = cmd.getSummary() != null && ServerInfo.relayPruning;
+		if (!summary && cmd.getIndex() == null && update == null && sample == null)
+			return sendSuccessMessage();
+		StringBuilder response = new StringBuilder("{\"response\":\"success\"");
+		if (update != null) {
+			response.append(",\"membership\":").append(core.getMembership().respond(update));
+		}
+		if (sample != null) {
+			response.append(",\"shuffle\":").append(Overlay.toJson(sample));
+		}
+		if (summary) {
+			// a server can only send its own summary, or it could keep queries away from another server
+			if (isFrom(cmd.getSummary().getServerBean(), origin)) {
+				core.getPeerSummaries().update(cmd.getSummary().getServerBean(), cmd.getSummary().getFilter());
+			} else {
+				logger.debug("ignored summary of " + cmd.getSummary().getServerBean() + " sent from " + origin);
 			}
+			// servers that send a summary get this server's summary back
+			response.append(",\"summary\":").append(core.getPeerSummaries().localSummary(core.getResources(), core.getMyServer()));
+		}
+		if (cmd.getIndex() != null) {
+			// and servers that send the digest of their index get what they are missing
+			response.append(",\"index\":").append(core.getFederatedIndex().delta(cmd.getIndex(), core.getResources(), core.getMyServer()));
+		}
+		List<Message> messages = new ArrayList<>();
+		messages.add(new Message(response.append('}').toString()));
+		return messages;
+	}
+
+	/**
+	 * The method checks that a server is the one a command came from: its address is the address
+	 * of the connection, or both are addresses of this host. The address of the server is only
+	 * looked up in the cache, so a server not resolved yet is not taken to be the sender.
+	 * @param serverBean
+	 * @param origin the address the command came from
+	 * @return true if the command came from the server
+	 */
+	private static boolean isFrom(ServerBean serverBean, InetAddress origin) {
+		InetAddress address = serverBean.getAddress();
+		if (origin == null || address == null) return false;
+		if (address.equals(origin)) return true;
+		return isLocal(origin) && isLocal(address);
+	}
+
+	private static boolean isLocal(InetAddress address) {
+		if (address.isLoopbackAddress() || address.isAnyLocalAddress()) return true;
+		try {
+			return NetworkInterface.getByInetAddress(address) != null;
+		} catch (SocketException e) {
+			return false;
 		}
-		logger.debug("RECEIVED : " + serverArray.toString());
-		return sendSuccessMessage();
+	}
+
+	/**
+	 * The method deal with the stats command and sends back the statistics of the query cache,
+	 * the summaries of other servers, the federated index, the membership, the views of the
+	 * overlay, the health of the other servers and the admission control.
+	 * @return messages List<Message>
+	 */
+	private List<Message> stats() {
+		List<Message> messages = sendSuccessMessage();
+		messages.add(new Message("{\"queryCache\":" + core.getQueryCache().statistics()
+				+ ",\"peerSummaries\":" + core.getPeerSummaries().statistics()
+				+ ",\"federatedIndex\":" + core.getFederatedIndex().statistics()
+				+ ",\"membership\":" + core.getMembership().statistics()
+				+ ",\"overlay\":" + core.getOverlay().statistics()
+				+ ",\"servers\":" + core.getServers().statistics()
+				+ ",\"admission\":" + core.getAdmissionControl().statistics() + "}"));
+		return messages;
 	}
 
 	/**
@@ -367,15 +528,9 @@ public class ServerCommandProcessor {
 	 */	
 	private static List<Message> sendErrorMessage(String message){
 		List<Message> messages =new ArrayList<>();
-		JSONObject jsonObject = new JSONObject();
-		try {
-			jsonObject.put("response","error");
-			jsonObject.put("errorMessage",message);
-		} catch (JSONException e) { 
-			e.printStackTrace();
-		}
-		Message response = new Message(jsonObject.toString());
-		messages.add(response);
+		StringBuilder builder = new StringBuilder("{\"response\":\"error\",\"errorMessage\":");
+		ResourceCodec.writeString(builder, message);
+		messages.add(new Message(builder.append('}').toString()));
 		return messages;
 	}
 
@@ -385,14 +540,7 @@ public class ServerCommandProcessor {
 	 */	
 	private static List<Message> sendSuccessMessage(){
 		List<Message> messages = new ArrayList<>();
-		JSONObject jsonObject = new JSONObject();
-		try {
-			jsonObject.put("response", "success");
-		} catch (JSONException e) { 
-			e.printStackTrace();
-		}
-		Message message = new Message(jsonObject.toString());
-		messages.add(message);
+		messages.add(new Message(SUCCESS));
 		return messages;
 	}
 
@@ -7,57 +7,115 @@
 
 package EZShare;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import org.apache.log4j.Logger; 
 
 public class ServerConnection {
+	// the threads of the pool which processes commands
+	static final int WORKER_THREADS = 20;
 	Logger logger = Logger.getLogger(ServerConnection.class);
 	
-	private ThreadPoolExecutor executor;
+	protected ExecutorService executor;
+	private ExecutorService relayExecutor;
 	private Map<String,Long> connectionIntevalInfo;
+	private PeerConnectionPool peerPool;
 	
 	public ServerConnection() {
-		executor = new ThreadPoolExecutor(20, 20, ServerInfo.timeout, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		if (ServerInfo.virtualThreads) {
+			executor = createVirtualThreadExecutor();
+			relayExecutor = executor;
+		} else {
+			// bounded, admission control turns requests away before the queue is full (see AdmissionControl)
+			executor = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, ServerInfo.timeout, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(1, ServerInfo.queueHighWater)));
+			relayExecutor = Executors.newCachedThreadPool();
+		}
 		connectionIntevalInfo = new ConcurrentHashMap<>();
+		peerPool = new PeerConnectionPool();
+	}
+	
+	/**
+	 * The method creates an executor that starts a virtual thread for every task. Virtual threads
+	 * are only available from Java 21, so on older runtimes every task gets its own platform thread.
+	 * @return executor
+	 */
+	private ExecutorService createVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			logger.warn("virtual threads require Java 21 or later, using a platform thread per connection");
+			return Executors.newCachedThreadPool();
+		}
 	}
 	
 	/**
 	 * The method handles connection from the client. The server will ensure the time between successive 
 	 * connections from any IP addresss be no less than a limit (1 sec by default). If satisfies the condition,
-	 * the server puts the thread to the thread pool.
+	 * the server puts the thread to the thread pool, unless admission control turns it away.
 	 * @param serverBean
 	 */
 	public void handleConnection(ServerBean serverBean) {
 		try {
-			ServerSocket serverSocket = new ServerSocket(serverBean.getPort());
+			// sockets accepted from a channel can send files with zero-copy transfers
+			ServerSocketChannel serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(serverBean.getPort()));
 			while (true) {
-				Socket clientSocket = serverSocket.accept();
+				Socket clientSocket = serverChannel.accept().socket();
 				clientSocket.setSoTimeout(ServerInfo.timeout * 1000);
 				logger.debug("connected to: " + clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort());
 				String ipAddress = clientSocket.getInetAddress().getHostAddress();
-				if (!connectionIntevalInfo.containsKey(ipAddress)) {
-					connectionIntevalInfo.put(ipAddress,System.currentTimeMillis());
-				} else {
-					if(System.currentTimeMillis() - connectionIntevalInfo.get(ipAddress) < ServerInfo.connectionInterval * 1000) {
-						clientSocket.close();
-						logger.debug("Client: " + clientSocket.getInetAddress().getHostAddress() + " violates the connection interval");
-						continue;
-					}
+				if (!checkConnectionInterval(ipAddress)) {
+					clientSocket.close();
+					logger.debug("Client: " + ipAddress + " violates the connection interval");
+					continue;
+				}
+				AdmissionControl admission = ServerCore.getInstance().getAdmissionControl();
+				if (!admission.admit()) {
+					logger.debug("Client: " + ipAddress + " turned away, server busy");
+					rejectBusy(clientSocket, admission);
+					continue;
+				}
+				Communication communication = new Communication(clientSocket);
+				try {
+					executor.execute(() -> {      // receive cmd msg and send reply
+						try {
+							communication.run();
+						} finally {
+							admission.done();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					admission.rejected();
+					rejectBusy(clientSocket, admission);
 				}
-				connectionIntevalInfo.put(ipAddress, System.currentTimeMillis());
-				executor.execute(new Communication(clientSocket));      // receive cmd msg and send reply
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -65,42 +123,189 @@ public class ServerConnection {
 	}
  
 	/**
-	 * The method is to establish a connection with a specific server. Send the message and
-	 * receive the messages from the server and return them.
-	 * @param serverBean an object with attributes: hostname, address, port
-	 * @param message a json string describing what the user enters in terminal
-	 * @return messages a list of messages from the server
+	 * @return how many commands are processed at once: the threads of the pool, or with virtual
+	 *         threads every command admitted
 	 */
-	public List<Message> establishConnection(ServerBean serverBean, Message message) {
-		Socket socket = null;
-		Message response = null;
-		List<Message> messages = new ArrayList<>();
+	public int getConcurrency() {
+		return ServerInfo.virtualThreads ? Math.max(1, ServerInfo.queueHighWater) : WORKER_THREADS;
+	}
+
+	/**
+	 * The method answers a connection that is turned away that the server is busy and closes it.
+	 * The command already received is skipped first, so closing doesn't reset the connection
+	 * before the client has read the answer.
+	 * @param socket
+	 * @param admission
+	 */
+	protected void rejectBusy(Socket socket, AdmissionControl admission) {
 		try {
-			socket = new Socket(serverBean.getAddress(), serverBean.getPort());
-			socket.setSoTimeout(ServerInfo.timeout * 1000);
-			DataInputStream inputStream = new DataInputStream(socket.getInputStream());
 			DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-			outputStream.writeUTF(message.getMessage());
+			outputStream.writeUTF(admission.busyMessage(getConcurrency()));
 			outputStream.flush();
-			String data = null; 
-			while (inputStream.available() > -1) { 
-				data = inputStream.readUTF(); 
-				logger.debug("Received: " + data);
-				response = new Message(MessageType.STRING, data, null, null);
-				messages.add(response);
-			} 
+			InputStream inputStream = socket.getInputStream();
+			inputStream.skip(inputStream.available());
 		} catch (IOException e) {
-			
-		} finally { 
-			if (socket != null) {
-				try {
-					socket.close();
-				} catch (IOException e) { 
-					logger.error(e.getMessage());
+			logger.debug("Cannot send busy message: " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * The method checks whether the time since the last connection from the IP address is no less
+	 * than the connection interval limit, and records the current connection time if it is.
+	 * @param ipAddress the address of the connecting client
+	 * @return true if the connection is allowed
+	 *         false if it violates the connection interval
+	 */
+	protected boolean checkConnectionInterval(String ipAddress) {
+		Long lastConnection = connectionIntevalInfo.get(ipAddress);
+		if (lastConnection != null && System.currentTimeMillis() - lastConnection < ServerInfo.connectionInterval * 1000) {
+			return false;
+		}
+		connectionIntevalInfo.put(ipAddress, System.currentTimeMillis());
+		return true;
+	}
+ 
+	/**
+	 * The method sends the message to all servers at once and hands the messages of each server to
+	 * the listener as soon as that server has answered. The listener is called on the calling thread.
+	 * Servers which haven't answered by the deadline are given up.
+	 * @param serverBeans the servers to contact
+	 * @param message a json string describing the command
+	 * @param deadline the time in milliseconds by which the servers have to answer
+	 * @param listener receives each server and its messages, an empty list if the connection failed
+	 * @return the servers which didn't answer before the deadline
+	 */
+	public List<ServerBean> establishConnections(List<ServerBean> serverBeans, Message message, long deadline,
+			BiConsumer<ServerBean, List<Message>> listener) {
+		return establishConnections(serverBeans, message, deadline, 0, null, listener);
+	}
+
+	/**
+	 * The method sends the message to all servers at once like the one above, and hedges servers
+	 * which are slow: a server which hasn't answered after its usual 95th percentile answer time
+	 * (see ServerTable) has the message sent to an alternate server as well, and the listener
+	 * gets the answers of both. Alternates are not reported when they don't answer by the deadline.
+	 * @param serverBeans the servers to contact
+	 * @param message a json string describing the command
+	 * @param deadline the time in milliseconds by which the servers have to answer
+	 * @param minTimeout the least time in milliseconds a server is waited for, e.g. while it passes the message on,
+	 *        never beyond the deadline
+	 * @param alternate gives the alternate of a slow server or null if it has none, null to not hedge
+	 * @param listener receives each server and its messages, an empty list if the connection failed
+	 * @return the servers which didn't answer before the deadline
+	 */
+	public List<ServerBean> establishConnections(List<ServerBean> serverBeans, Message message, long deadline,
+			int minTimeout, Function<ServerBean, ServerBean> alternate, BiConsumer<ServerBean, List<Message>> listener) {
+		CompletionService<List<Message>> completionService = new ExecutorCompletionService<>(relayExecutor);
+		Map<Future<List<Message>>, ServerBean> pending = new HashMap<>();
+		// the time each server which hasn't answered yet is hedged
+		Map<ServerBean, Long> hedgeTimes = new HashMap<>();
+		Set<ServerBean> alternates = new HashSet<>();
+		long start = System.currentTimeMillis();
+		for (ServerBean serverBean : serverBeans) {
+			pending.put(completionService.submit(() -> establishConnection(serverBean, message, minTimeout, deadline)), serverBean);
+			long delay = alternate == null ? -1 : ServerCore.getInstance().getServers().hedgeDelay(serverBean);
+			if (delay >= 0) {
+				hedgeTimes.put(serverBean, start + delay);
+			}
+		}
+		while (!pending.isEmpty()) {
+			long wakeUp = deadline;
+			for (long hedgeTime : hedgeTimes.values()) {
+				wakeUp = Math.min(wakeUp, hedgeTime);
+			}
+			Future<List<Message>> future = null;
+			try {
+				future = completionService.poll(wakeUp - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			if (future == null) {
+				long now = System.currentTimeMillis();
+				if (now >= deadline) break;
+				for (Iterator<Map.Entry<ServerBean, Long>> it = hedgeTimes.entrySet().iterator(); it.hasNext();) {
+					Map.Entry<ServerBean, Long> entry = it.next();
+					if (entry.getValue() > now) continue;
+					it.remove();
+					ServerBean hedge = alternate.apply(entry.getKey());
+					if (hedge != null && alternates.add(hedge)) {
+						logger.debug("hedging " + entry.getKey() + " with " + hedge);
+						pending.put(completionService.submit(() -> establishConnection(hedge, message, minTimeout, deadline)), hedge);
+					}
 				}
+				continue;
 			}
-		}  
-		return messages;
+			ServerBean serverBean = pending.remove(future);
+			hedgeTimes.remove(serverBean);
+			List<Message> messages;
+			try {
+				messages = future.get();
+			} catch (InterruptedException | ExecutionException e) {
+				messages = new ArrayList<>();
+			}
+			listener.accept(serverBean, messages);
+		}
+		// cancelling doesn't unblock a socket read, the tasks left end by the deadline by themselves
+		for (Future<List<Message>> future : pending.keySet()) {
+			future.cancel(true);
+		}
+		List<ServerBean> lateServers = new ArrayList<>(pending.values());
+		lateServers.removeAll(alternates);
+		return lateServers;
+	}
+ 
+	public PeerConnectionPool getPeerPool() {
+		return peerPool;
+	}
+ 
+	/**
+	 * The method is to establish a connection with a specific server. Send the message and
+	 * receive the messages from the server and return them. A pooled persistent connection is
+	 * used if the server supports them, otherwise a new socket is opened for the message.
+	 * The server is waited for as long as its recent answer times suggest (see ServerTable).
+	 * @param serverBean an object with attributes: hostname, address, port
+	 * @param message a json string describing what the user enters in terminal
+	 * @return messages a list of messages from the server
+	 */
+	public List<Message> establishConnection(ServerBean serverBean, Message message) {
+		return establishConnection(serverBean, message, 0);
+	}
+
+	/**
+	 * The method is to establish a connection with a specific server like the one above, waiting
+	 * for it at least the given time.
+	 * @param serverBean an object with attributes: hostname, address, port
+	 * @param message a json string describing what the user enters in terminal
+	 * @param minTimeout the least time in milliseconds the server is waited for
+	 * @return messages a list of messages from the server
+	 */
+	public List<Message> establishConnection(ServerBean serverBean, Message message, int minTimeout) {
+		return establishConnection(serverBean, message, minTimeout, Long.MAX_VALUE);
+	}
+
+	/**
+	 * The method is to establish a connection with a specific server like the one above, giving up
+	 * at the deadline, so a relay task nobody waits for any more doesn't hold its thread.
+	 * @param serverBean an object with attributes: hostname, address, port
+	 * @param message a json string describing what the user enters in terminal
+	 * @param minTimeout the least time in milliseconds the server is waited for
+	 * @param deadline the time in milliseconds by which the server has to answer
+	 * @return messages a list of messages from the server, an empty list if the deadline has passed
+	 */
+	private List<Message> establishConnection(ServerBean serverBean, Message message, int minTimeout, long deadline) {
+		long timeout = Math.max(minTimeout, ServerCore.getInstance().getServers().timeout(serverBean));
+		timeout = Math.min(timeout, deadline - System.currentTimeMillis());
+		if (timeout <= 0) return new ArrayList<>();
+		List<Message> pooledMessages = peerPool.request(serverBean, message, (int) timeout);
+		if (pooledMessages != null) return pooledMessages;
+		return ClientConnection.establishConnection(serverBean, message, (int) timeout);
 	}
 }
 
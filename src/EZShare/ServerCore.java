@@ -2,36 +2,44 @@
  * This class is responsible for the core functionality of the server.
  * It will create a resource list and a server list and maintain it for the server.
  * And it is in charge of creating listening and exchanging threads.
- * Server will exchange the server list with a random server every X minutes (default 10min).
+ * Server will exchange the server list with a random server every X minutes (default 10min),
+ * sending only the changes to the list (see Membership), or, in large meshes, shuffling a
+ * partial view of the servers with it (see Overlay).
  * @author Sheng Wu
  * @version 1.0 29/04/2017
  */
 
 package EZShare;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.net.UnknownHostException;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
-import org.apache.wink.json4j.JSONArray;
 import org.apache.wink.json4j.JSONException;
-import org.apache.wink.json4j.JSONObject;
 import org.apache.wink.json4j.OrderedJSONObject;
 
 public class ServerCore {
 	private int status;
 	private ServerBean myServer;
 	private ServerConnection serverConnection;
-	private List<Resource> resources;
-	private List<ServerBean> serverList;
+	private ResourceStore resources;
+	private QueryCache queryCache;
+	private AdmissionControl admissionControl;
+	private PeerSummaries peerSummaries;
+	private FederatedIndex federatedIndex;
+	private Membership membership;
+	private Overlay overlay;
+	// the most exchanges in a row to catch up with the index of another server
+	private static final int MAX_SYNC_ROUNDS = 16;
+	private ServerTable servers;
 	private static ServerCore serverCore;
 	Logger logger = Logger.getLogger(ServerCore.class); 
 	
 	private ServerCore() {
-		resources= Collections.synchronizedList(new ArrayList<>());
-		serverList = Collections.synchronizedList(new ArrayList<>());
+		resources = new ResourceStore();
+		peerSummaries = new PeerSummaries();
+		federatedIndex = new FederatedIndex();
 	}
 	
 	public int getStatus() {
@@ -58,20 +66,44 @@ public class ServerCore {
 		this.serverConnection = serverConnection;
 	}
 
-	public List<Resource> getResources() {
+	public ResourceStore getResources() {
 		return resources;
 	}
 
-	public void setResources(List<Resource> resources) {
+	public void setResources(ResourceStore resources) {
 		this.resources = resources;
 	}
 
-	public List<ServerBean> getServerList() {
-		return serverList;
+	public QueryCache getQueryCache() {
+		return queryCache;
 	}
 
-	public void setServerList(List<ServerBean> serverList) {
-		this.serverList = serverList;
+	public void setQueryCache(QueryCache queryCache) {
+		this.queryCache = queryCache;
+	}
+
+	public AdmissionControl getAdmissionControl() {
+		return admissionControl;
+	}
+
+	public PeerSummaries getPeerSummaries() {
+		return peerSummaries;
+	}
+
+	public FederatedIndex getFederatedIndex() {
+		return federatedIndex;
+	}
+
+	public Membership getMembership() {
+		return membership;
+	}
+
+	public Overlay getOverlay() {
+		return overlay;
+	}
+
+	public ServerTable getServers() {
+		return servers;
 	}
 	
 	public static ServerCore getInstance() {
@@ -90,14 +122,26 @@ public class ServerCore {
 	 * It adds its information to the server list for exchanging and creates a thread pool.
 	 */
 	public void initServer() {
+		try {
+			// resolved up front so the key of this server is its address and other names of it are recognised
+			HostResolver.resolve(ServerInfo.hostName);
+		} catch (UnknownHostException e) {
+			logger.error("cannot resolve advertised hostname: " + ServerInfo.hostName);
+		}
 		this.myServer = new ServerBean(ServerInfo.hostName, ServerInfo.port);
-		serverList.add(myServer);
+		servers = new ServerTable(myServer);
+		membership = new Membership(servers, myServer);
+		overlay = new Overlay(servers, myServer);
+		queryCache = new QueryCache(ServerInfo.queryCacheSize);
+		admissionControl = new AdmissionControl();
 		logger.info("Starting the EZShare Server");
 		logger.info("using secret: " + ServerInfo.secret);
 		logger.info("using advertised hostname: " + ServerInfo.hostName);
 		logger.info("bound to port: " + ServerInfo.port);
+		logger.info("using " + (ServerInfo.nio ? "non-blocking" : "blocking") + " connections on "
+				+ (ServerInfo.virtualThreads ? "virtual threads" : "a thread pool"));
 		logger.info("started ");
-		serverConnection = new ServerConnection(); // create a thread pool
+		serverConnection = ServerInfo.nio ? new NioServerConnection() : new ServerConnection(); // create a thread pool
 	} 
 	
 	/**
@@ -122,10 +166,14 @@ public class ServerCore {
 	}
 	
 	/**
-	 * The method issues an exchange command with a random server and provides it with a copy
-	 * of its entire server records. If the selected server is not reachable or a communication 
-	 * error occurs, then the selected server is removed from the server list and no further 
-	 * action is taken in this round.
+	 * The method issues an exchange command with a server picked by the table of servers. It sends the hash of the
+	 * membership, and the server answers with its digest if their memberships differ, in which
+	 * case a second exchange sends the entries the server lacks and fetches the ones it has newer.
+	 * Servers that don't answer with membership are sent the entire server list instead.
+	 * With the overlay on, the exchange shuffles the views of the two servers instead of
+	 * exchanging membership.
+	 * If the selected server is not reachable or a communication error occurs, then the
+	 * selected server is suspected and no further action is taken in this round.
 	 */
 	private void exchangeServers() {
 		logger.debug("start exchange servers");
@@ -135,51 +183,147 @@ public class ServerCore {
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
-			if (serverList.size() == 0) continue;
-			Random random = new Random();
-			List<ServerBean> diedServer = new ArrayList<>();
-			JSONArray serverArray = new JSONArray();
-			synchronized (serverList) {
-				serverList.forEach(server -> {
-					JSONObject serverObject = new JSONObject();
-					try {
-						serverObject.put("hostname", server.getHostname());
-						serverObject.put("port", server.getPort());
-					} catch (JSONException e) { 
-						e.printStackTrace();
-					}
-					serverArray.add(serverObject);
-				});
-			} 
-			int r = random.nextInt(serverList.size()); 
-			OrderedJSONObject messageObject = new OrderedJSONObject();
-			try { 
-				messageObject.put("command", "EXCHANGE");
-				messageObject.put("serverList", serverArray);
-			} catch (JSONException e) { 
-				e.printStackTrace();
+			if (ServerInfo.overlay) {
+				overlay.fill();
+			}
+			ServerBean target = servers.exchangeTarget();
+			if (target == null) continue;
+			boolean died = false;
+			List<ServerBean> sample = ServerInfo.overlay ? overlay.sample() : null;
+			Message message = exchangeMessage(target, "{\"hash\":\"" + membership.hash() + "\"}", sample);
+			long start = System.currentTimeMillis();
+			List<Message> messages = serverConnection.establishConnection(target, message);  // issue an exchange cmd
+			if (messages.size() > 0 && AdmissionControl.isBusy(messages.get(0).getMessage())) {
+				// a busy server is healthy, the exchange waits for the next round
+				logger.debug(target + " is busy");
+				continue;
 			}
-			Message message = new Message(MessageType.STRING, messageObject.toString(), null, null); // a copy of server list
-			List<Message> messages = serverConnection.establishConnection(serverList.get(r), message);  // issue an exchange cmd
 			if (messages.size() == 0) {
-				diedServer.add(serverList.get(r));
+				died = true;
 			} else {
+				BloomFilter summary = ServerInfo.relayPruning ? PeerSummaries.readResponse(messages.get(0).getMessage()) : null;
+				if (summary != null) {
+					peerSummaries.update(target, summary);
+				}
 				OrderedJSONObject resultObject;
 				try {
 					resultObject = new OrderedJSONObject(messages.get(0).getMessage());
 					if (!resultObject.containsKey("response") ||
 							(resultObject.containsKey("response") && !resultObject.get("response").equals("success")))
-						diedServer.add(serverList.get(r));
+						died = true;
 				} catch (JSONException e) {
 					e.printStackTrace();
 				}				
+				if (sample != null && !died) {
+					List<ServerBean> shuffle = Overlay.readResponse(messages.get(0).getMessage());
+					if (shuffle != null) {
+						overlay.merge(shuffle, sample);
+					}
+				}
+				Membership.Update reply = sample != null ? null : Membership.readResponse(messages.get(0).getMessage());
+				if (reply != null && !died) {
+					membership.setCapable(target);
+					if (reply.getDigest() != null) {
+						reconcile(target, reply.getDigest());
+					}
+				}
+				if (ServerInfo.federation && !died) {
+					// keep asking while the other server has more of the index to send
+					boolean more = federatedIndex.apply(messages.get(0).getMessage(), myServer);
+					for (int round = 1; more && round < MAX_SYNC_ROUNDS; round++) {
+						List<Message> next = serverConnection.establishConnection(target, exchangeMessage(target, "{}", null));
+						more = next.size() > 0 && federatedIndex.apply(next.get(0).getMessage(), myServer);
+					}
+				}
 			} 
 			
-			synchronized (serverList) {
-				serverList.removeAll(diedServer);
+			if (died) {
+				contactFailed(target);
+			} else {
+				servers.reachable(target, System.currentTimeMillis() - start);
 			}
-			logger.debug("current servers:" + serverList);
+			logger.debug("current servers:" + servers.servers());
+		}
+	}
+
+	/**
+	 * The method sends a server the membership entries it lacks and merges the entries it has
+	 * newer versions of.
+	 * @param target
+	 * @param digest the versions of the server
+	 */
+	private void reconcile(ServerBean target, Map<String, Long> digest) {
+		String message = "{\"command\":\"EXCHANGE\",\"membership\":" + membership.reconcile(digest) + "}";
+		List<Message> messages = serverConnection.establishConnection(target, new Message(MessageType.STRING, message, null, null));
+		if (messages.size() == 0) return;
+		Membership.Update reply = Membership.readResponse(messages.get(0).getMessage());
+		if (reply != null && reply.getEntries() != null) {
+			membership.merge(reply.getEntries()).forEach(this::serverDied);
+		}
+	}
+
+	/**
+	 * The method records that a server couldn't be reached. The server is suspected at first,
+	 * and marked dead once the failure detector gives up on it. With the overlay on, a server
+	 * from the passive view takes its place instead.
+	 * @param serverBean
+	 */
+	public void contactFailed(ServerBean serverBean) {
+		if (servers.unreachable(serverBean)) {
+			logger.debug("evicting " + serverBean);
+			if (ServerInfo.overlay) {
+				overlay.failed(serverBean);
+			} else {
+				membership.markDead(serverBean);
+			}
+			serverDied(serverBean);
+		}
+	}
+
+	/**
+	 * The method forgets what is kept about a server that left: its connections, its summary and
+	 * its part of the federated index.
+	 * @param serverBean
+	 */
+	public void serverDied(ServerBean serverBean) {
+		serverConnection.getPeerPool().close(serverBean);
+		peerSummaries.remove(serverBean);
+		federatedIndex.remove(serverBean);
+	}
+
+	/**
+	 * The method builds an exchange command with the hash of the membership, the summary of the
+	 * resources of this server if relays are pruned by summaries and, if the federated index is
+	 * on, the digest of the index.
+	 * Servers which are not known to take part in membership exchanges get the server list too.
+	 * A shuffle of the overlay is sent in place of the membership. The parts are json already and
+	 * are spliced into the command as they are.
+	 * @param target
+	 * @param membershipPart the membership part as a json object
+	 * @param shuffle the servers shuffled into the views of the overlay, or null
+	 * @return message
+	 */
+	private Message exchangeMessage(ServerBean target, String membershipPart, List<ServerBean> shuffle) {
+		StringBuilder builder = new StringBuilder("{\"command\":\"EXCHANGE\"");
+		if (shuffle != null) {
+			builder.append(",\"shuffle\":").append(Overlay.toJson(shuffle));
+		} else if (ServerInfo.overlay) {
+			// later rounds of an overlay exchange only carry the index
+			builder.append(",\"shuffle\":[]");
+		} else {
+			if (!membership.isCapable(target)) {
+				builder.append(",\"serverList\":").append(Overlay.toJson(servers.servers()));
+			}
+			builder.append(",\"membership\":").append(membershipPart);
+		}
+		if (ServerInfo.relayPruning) {
+			// a summary of the resources of this server, so the other server can skip it when relaying
+			builder.append(",\"summary\":").append(peerSummaries.localSummary(resources, myServer));
+		}
+		if (ServerInfo.federation) {
+			builder.append(",\"index\":").append(federatedIndex.digest(resources, myServer));
 		}
+		return new Message(MessageType.STRING, builder.append('}').toString(), null, null);
 	}
 }
 
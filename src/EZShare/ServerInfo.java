@@ -13,10 +13,34 @@ public class ServerInfo {
 	public static int connectionInterval = 1;  //sec
 	public static int exchangeInterval = 600;  //sec
 	public static int timeout = 60;  //sec
+	public static int relayDeadline = 10;  //sec
+	public static double timeoutMultiplier = 3;  // times the 99th percentile answer time of a server it is waited for
+	public static int minPeerTimeout = 2;  //sec, the least time a server with known answer times is waited for
+	public static int maxPeerTimeout = 300;  //sec, the most time a server with known answer times is waited for
+	public static boolean hedge = false;  // ask another server when a relayed server is slower than usual
+	public static int queueHighWater = 200;  // requests accepted and not finished before new ones are turned away
+	public static int relayHighWater = 100;  // requests accepted and not finished before queries relayed by other servers are turned away
+	public static int peerPoolSize = 2;  // idle connections kept per server
+	public static int peerMaxIdle = 30;  //sec
+	public static int queryCacheSize = 1024;  // cached query results, 0 turns the cache off
+	public static int queryCacheTtl = 10;  //sec, how long results from other servers are cached
+	public static boolean relayPruning = false;  // leave servers whose resource summary has no match out of relays
+	public static int summaryMaxAge = 60;  //sec, how long the resource summary of another server is trusted
+	public static boolean federation = false;  // copy the public resources of other servers to answer relayed queries
+	public static int federationMaxStaleness = 600;  //sec, how old a copy can be and still answer queries
+	public static double phiThreshold = 8;  // suspicion at which a server that fails again is evicted
+	public static boolean overlay = false;  // know only a partial view of the servers and relay queries along it
+	public static int activeViewSize = 5;  // servers exchanged with and relayed to in the overlay
+	public static int passiveViewSize = 30;  // servers kept in reserve in the overlay
+	public static int overlayHops = 3;  // times a query is passed on along the overlay
+	public static int dnsTtl = 300;  //sec, how long the address of a hostname is cached
+	public static int dnsNegativeTtl = 30;  //sec, how long a hostname that can't be resolved is cached
 	public static String secret = UUID.randomUUID().toString();
 	public static String hostName = "";
 	public static int port = 3000;
 	public static boolean debug = false; 
+	public static boolean nio = false;
+	public static boolean virtualThreads = false;
 	
 	static {
 		try {
@@ -0,0 +1,374 @@
+/**
+ * This class is the table of the servers this server knows, keyed by address and port. Besides
+ * the server it keeps how each other server has been doing: when it last answered, how long it
+ * takes to answer and how suspicious its silence is. Suspicion follows the phi accrual failure
+ * detector: the gaps between answers are learned, and phi grows with how unlikely the current
+ * silence is given those gaps. A server that fails is only suspected, and it is evicted once it
+ * has failed again while phi is over the threshold, or has failed too many times in a row.
+ * Relays and exchanges prefer healthy servers which answer quickly. A suspected server is only
+ * left out of relays for a short backoff after it failed, then it is asked again, last, so a
+ * server that failed once is cleared by the next query it answers.
+ * The recent answer times of each server are kept too, and the time a server is waited for is
+ * derived from them: the 99th percentile times a multiplier, within bounds. A relay to a server
+ * slower than its 95th percentile can be hedged.
+ * @author Sheng Wu
+ * @version 1.0 29/04/2017
+ */
+
+package EZShare;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class ServerTable {
+	// failures in a row after which a server is evicted whatever phi says
+	private static final int MAX_FAILURES = 3;
+	// how much a new sample moves the averages
+	private static final double SMOOTHING = 0.2;
+	// the least standard deviation of the gaps between answers, so regular gaps don't make phi jumpy
+	private static final double MIN_DEVIATION = 100;  //milliseconds
+	// how often an exchange goes to a suspected server to find out whether it is back
+	private static final double PROBE_RATE = 0.25;
+	// how long after failing a suspected server is left out of relays
+	private static final long RELAY_BACKOFF = 10 * 1000;  //milliseconds
+	// answer times kept per server for the percentiles
+	private static final int LATENCY_SAMPLES = 64;
+	// answer times needed before the percentiles are trusted
+	private static final int MIN_LATENCY_SAMPLES = 8;
+
+	private ServerBean myServer;
+	private Map<String, Peer> peers;
+	// the key each server was last found under, by hostname and port, to follow address changes
+	private Map<String, String> names;
+	private Random random;
+
+	/**
+	 * @param myServer this server, which is always in the table
+	 */
+	public ServerTable(ServerBean myServer) {
+		this.myServer = myServer;
+		peers = new ConcurrentHashMap<>();
+		names = new ConcurrentHashMap<>();
+		random = new Random();
+		add(myServer);
+	}
+
+	/**
+	 * @param serverBean
+	 * @return true if the server was added, false if it is already in the table
+	 */
+	public boolean add(ServerBean serverBean) {
+		if (get(serverBean) != null) return false;
+		String key = key(serverBean);
+		if (peers.putIfAbsent(key, new Peer(serverBean)) != null) return false;
+		names.put(serverBean.toString(), key);
+		return true;
+	}
+
+	public void remove(ServerBean serverBean) {
+		String key = key(serverBean);
+		if (!key.equals(key(myServer)) && get(serverBean) != null) {
+			peers.remove(key);
+			names.values().removeIf(key::equals);
+		}
+	}
+
+	public boolean contains(ServerBean serverBean) {
+		return get(serverBean) != null;
+	}
+
+	/**
+	 * The method looks a server up. A server added before its hostname resolved, or whose
+	 * hostname has moved to another address since, is moved to its current key the first time
+	 * it is looked up after.
+	 * @param serverBean
+	 * @return the state of the server, or null if it isn't in the table
+	 */
+	public Peer get(ServerBean serverBean) {
+		String key = key(serverBean);
+		Peer peer = peers.get(key);
+		if (peer != null) return peer;
+		String name = serverBean.toString();
+		String previous = names.get(name);
+		if (previous == null || previous.equals(key)) return null;
+		peer = peers.remove(previous);
+		if (peer == null) return null;
+		Peer existing = peers.putIfAbsent(key, peer);
+		names.put(name, key);
+		return existing != null ? existing : peer;
+	}
+
+	/**
+	 * The key of a server in the table, the address its hostname currently resolves to and its
+	 * port, or its hostname and port while the hostname isn't resolved. Unlike the key of the
+	 * server itself it follows the hostname to a new address.
+	 */
+	private static String key(ServerBean serverBean) {
+		return HostResolver.key(serverBean.getHostname()) + ":" + serverBean.getPort();
+	}
+
+	/**
+	 * @return the number of servers in the table, this one included
+	 */
+	public int size() {
+		return peers.size();
+	}
+
+	/**
+	 * @return every server in the table, this one included
+	 */
+	public List<ServerBean> servers() {
+		List<ServerBean> servers = new ArrayList<>();
+		peers.values().forEach(peer -> servers.add(peer.serverBean));
+		return servers;
+	}
+
+	/**
+	 * The method lists the servers a query is relayed to: the other servers, the quickest first
+	 * and suspected servers last. Suspected servers which failed within the backoff are left out.
+	 * @param suspects receives the servers left out because they failed just now
+	 * @return the servers
+	 */
+	public List<ServerBean> relayTargets(List<ServerBean> suspects) {
+		List<ServerBean> targets = new ArrayList<>();
+		Map<ServerBean, Double> rtts = new HashMap<>();
+		long now = System.currentTimeMillis();
+		for (Peer peer : peers.values()) {
+			if (peer.serverBean.equals(myServer)) continue;
+			if (peer.isSuspected()) {
+				if (now - peer.getLastFailure() < RELAY_BACKOFF) {
+					suspects.add(peer.serverBean);
+				} else {
+					targets.add(peer.serverBean);
+					rtts.put(peer.serverBean, Double.POSITIVE_INFINITY);
+				}
+			} else {
+				targets.add(peer.serverBean);
+				// servers that never answered have no estimate and go after the others
+				rtts.put(peer.serverBean, peer.getRtt() < 0 ? Double.MAX_VALUE : peer.getRtt());
+			}
+		}
+		targets.sort(Comparator.comparingDouble(rtts::get));
+		return targets;
+	}
+
+	/**
+	 * The method picks the server to exchange with. Healthy servers are picked more often the
+	 * quicker they answer, and servers without an estimate as often as the quickest, so they get one.
+	 * Now and then a suspected server is picked instead, so it is either cleared or evicted.
+	 * @return the server, or null if there is no other server
+	 */
+	public ServerBean exchangeTarget() {
+		List<ServerBean> healthy = new ArrayList<>();
+		List<Double> rtts = new ArrayList<>();
+		List<ServerBean> suspects = new ArrayList<>();
+		double fastest = -1;
+		for (Peer peer : peers.values()) {
+			if (peer.serverBean.equals(myServer)) continue;
+			if (peer.isSuspected()) {
+				suspects.add(peer.serverBean);
+			} else {
+				double rtt = peer.getRtt();
+				healthy.add(peer.serverBean);
+				rtts.add(rtt);
+				if (rtt >= 0 && (fastest < 0 || rtt < fastest)) fastest = rtt;
+			}
+		}
+		if (!suspects.isEmpty() && (healthy.isEmpty() || random.nextDouble() < PROBE_RATE)) {
+			return suspects.get(random.nextInt(suspects.size()));
+		}
+		if (healthy.isEmpty()) return null;
+		double[] weights = new double[healthy.size()];
+		double total = 0;
+		for (int i = 0; i < weights.length; i++) {
+			double rtt = rtts.get(i) < 0 ? Math.max(fastest, 0) : rtts.get(i);
+			weights[i] = 1 / (rtt + 10);
+			total += weights[i];
+		}
+		double r = random.nextDouble() * total;
+		for (int i = 0; i < weights.length; i++) {
+			r -= weights[i];
+			if (r < 0) return healthy.get(i);
+		}
+		return healthy.get(healthy.size() - 1);
+	}
+
+	/**
+	 * The method records that a server answered.
+	 * @param serverBean
+	 * @param rtt the time the server took to answer in milliseconds
+	 */
+	public void reachable(ServerBean serverBean, long rtt) {
+		Peer peer = get(serverBean);
+		if (peer != null) {
+			peer.reachable(System.currentTimeMillis(), rtt);
+		}
+	}
+
+	/**
+	 * The method works out how long to wait for a server to answer: the 99th percentile of its
+	 * recent answer times times the multiplier, between the least and the most timeout. Servers
+	 * with too few answers get the default timeout.
+	 * @param serverBean
+	 * @return the timeout in milliseconds
+	 */
+	public int timeout(ServerBean serverBean) {
+		Peer peer = get(serverBean);
+		long p99 = peer == null ? -1 : peer.percentile(0.99);
+		if (p99 < 0) return ServerInfo.timeout * 1000;
+		long timeout = Math.round(p99 * ServerInfo.timeoutMultiplier);
+		return (int) Math.min(ServerInfo.maxPeerTimeout * 1000L, Math.max(ServerInfo.minPeerTimeout * 1000L, timeout));
+	}
+
+	/**
+	 * The method works out how long a relay to a server runs before it is hedged: the 95th
+	 * percentile of the recent answer times of the server.
+	 * @param serverBean
+	 * @return the delay in milliseconds, or -1 if the server has too few answers to tell
+	 */
+	public long hedgeDelay(ServerBean serverBean) {
+		Peer peer = get(serverBean);
+		return peer == null ? -1 : peer.percentile(0.95);
+	}
+
+	/**
+	 * The method records that a server couldn't be reached, and suspects it.
+	 * @param serverBean
+	 * @return true if the server should be evicted
+	 */
+	public boolean unreachable(ServerBean serverBean) {
+		Peer peer = get(serverBean);
+		return peer != null && !serverBean.equals(myServer) && peer.unreachable(System.currentTimeMillis());
+	}
+
+	/**
+	 * The method describes the table for the STATS command.
+	 * @return the statistics as a json string
+	 */
+	public String statistics() {
+		long now = System.currentTimeMillis();
+		StringBuilder builder = new StringBuilder("[");
+		for (Peer peer : peers.values()) {
+			if (peer.serverBean.equals(myServer)) continue;
+			if (builder.length() > 1) builder.append(',');
+			builder.append("{\"server\":");
+			ResourceCodec.writeString(builder, peer.serverBean.toString());
+			synchronized (peer) {
+				builder.append(",\"suspected\":").append(peer.suspected)
+						.append(",\"phi\":").append(Math.round(peer.phi(now) * 100) / 100.0)
+						.append(",\"rtt\":").append(Math.round(peer.rtt))
+						.append(",\"p99\":").append(peer.percentile(0.99))
+						.append(",\"timeout\":").append(timeout(peer.serverBean))
+						.append(",\"lastSeen\":").append(peer.lastSeen)
+						.append(",\"failures\":").append(peer.failures).append('}');
+			}
+		}
+		return builder.append(']').toString();
+	}
+
+	/**
+	 * The state of a server: when it last answered, its answer time and the gaps between its
+	 * answers, averaged with exponential smoothing, its recent answer times and how many times
+	 * in a row it failed.
+	 */
+	public static class Peer {
+		private ServerBean serverBean;
+		private long lastSeen;
+		private double rtt = -1;
+		private double meanGap = -1;
+		private double gapVariance;
+		private int failures;
+		private long lastFailure;
+		private boolean suspected;
+		// the recent answer times, oldest overwritten first
+		private long[] samples = new long[LATENCY_SAMPLES];
+		private int sampleCount;
+
+		private Peer(ServerBean serverBean) {
+			this.serverBean = serverBean;
+		}
+
+		private synchronized void reachable(long now, long sample) {
+			if (lastSeen > 0) {
+				double gap = now - lastSeen;
+				if (meanGap < 0) {
+					meanGap = gap;
+				} else {
+					double difference = gap - meanGap;
+					meanGap += SMOOTHING * difference;
+					gapVariance = (1 - SMOOTHING) * (gapVariance + SMOOTHING * difference * difference);
+				}
+			}
+			rtt = rtt < 0 ? sample : rtt + SMOOTHING * (sample - rtt);
+			samples[sampleCount++ % LATENCY_SAMPLES] = sample;
+			lastSeen = now;
+			failures = 0;
+			suspected = false;
+		}
+
+		private synchronized boolean unreachable(long now) {
+			failures++;
+			lastFailure = now;
+			suspected = true;
+			return failures >= MAX_FAILURES || (failures > 1 && phi(now) >= ServerInfo.phiThreshold);
+		}
+
+		/**
+		 * The method works out phi, minus the log10 of the chance that an answer is still to come
+		 * after this much silence, taking the gaps as normally distributed.
+		 * @param now
+		 * @return phi, 0 while there are too few answers to tell
+		 */
+		public synchronized double phi(long now) {
+			if (meanGap < 0) return 0;
+			double elapsed = now - lastSeen;
+			double deviation = Math.max(Math.sqrt(gapVariance), Math.max(MIN_DEVIATION, meanGap / 4));
+			double y = (elapsed - meanGap) / deviation;
+			// a logistic approximation of the normal distribution
+			double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+			return elapsed > meanGap ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+		}
+
+		/**
+		 * @param p the fraction of answers, e.g. 0.99
+		 * @return the answer time in milliseconds that fraction of the recent answers took at most,
+		 *         -1 while there are too few answers to tell
+		 */
+		public synchronized long percentile(double p) {
+			int size = Math.min(sampleCount, LATENCY_SAMPLES);
+			if (size < MIN_LATENCY_SAMPLES) return -1;
+			long[] sorted = Arrays.copyOf(samples, size);
+			Arrays.sort(sorted);
+			return sorted[Math.min(size - 1, (int) Math.ceil(p * size) - 1)];
+		}
+
+		public ServerBean getServerBean() {
+			return serverBean;
+		}
+
+		public synchronized boolean isSuspected() {
+			return suspected;
+		}
+
+		/**
+		 * @return the smoothed time the server takes to answer in milliseconds, -1 if it never answered
+		 */
+		public synchronized double getRtt() {
+			return rtt;
+		}
+
+		public synchronized long getLastFailure() {
+			return lastFailure;
+		}
+
+		public synchronized long getLastSeen() {
+			return lastSeen;
+		}
+	}
+}